@@ -0,0 +1,117 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.drt.optimizer.DefaultDrtOptimizer;
+import org.matsim.contrib.drt.optimizer.DrtRequestInsertionRetryParams;
+import org.matsim.contrib.drt.optimizer.DrtRequestInsertionRetryQueue;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.drt.run.DrtConfigGroup;
+import org.matsim.contrib.drt.schedule.DrtStayTaskEndTimeCalculator;
+import org.matsim.contrib.drt.scheduler.DrtScheduleInquiry;
+import org.matsim.contrib.drt.stops.DefaultStopTimeCalculator;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.fleet.Fleet;
+import org.matsim.contrib.dvrp.schedule.ScheduleTimingUpdater;
+import org.matsim.core.mobsim.framework.MobsimTimer;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sinfonica.inclusive_ccam.heterogenous_users.drt.UserSpecificStopTimeProvider;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The work of {@link DefaultDrtOptimizer} itself on the dispatch path: ordering submitted requests by interaction
+ * time, and the time step that updates the schedule timings of the fleet and hands the open requests to the inserter.
+ * The inserter is a stub that takes all requests, so the insertion search is not part of the measurement. The fleet
+ * is idle, there is no rebalancing and no return to depots, so the depot finder, the rebalancing strategy and the
+ * relocator are never used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DefaultDrtOptimizerBenchmark {
+	private static final int REQUESTS_PER_STEP = 16;
+	private static final double TIME = 8.0 * 3600.0;
+
+	@Param({ "100", "1000", "5000" })
+	public int fleetSize;
+
+	private ForkJoinPool forkJoinPool;
+	private DefaultDrtOptimizer optimizer;
+	private List<DrtRequest> requests;
+
+	@SuppressWarnings("rawtypes")
+	private MobsimBeforeSimStepEvent simStepEvent;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		Network network = SyntheticScenarios.createGridNetwork(50);
+		Population population = SyntheticScenarios.createPopulation(10000, 0.5, 180.0, random);
+
+		ImmutableMap.Builder<Id<DvrpVehicle>, DvrpVehicle> vehicles = ImmutableMap.builder();
+		SyntheticScenarios.createIdleFleet(network, fleetSize, random)
+				.forEach(vehicle -> vehicles.put(vehicle.getId(), vehicle));
+		ImmutableMap<Id<DvrpVehicle>, DvrpVehicle> fleetVehicles = vehicles.build();
+		Fleet fleet = () -> fleetVehicles;
+
+		MobsimTimer timer = new MobsimTimer();
+		timer.setTime(TIME);
+
+		DrtConfigGroup drtCfg = new DrtConfigGroup();
+		forkJoinPool = new ForkJoinPool(drtCfg.numberOfThreads);
+
+		optimizer = new DefaultDrtOptimizer(drtCfg, fleet, timer, null, null, new DrtScheduleInquiry(timer),
+				new ScheduleTimingUpdater(timer, new DrtStayTaskEndTimeCalculator(new DefaultStopTimeCalculator(60.0))),
+				null, unplannedRequests -> unplannedRequests.clear(),
+				new DrtRequestInsertionRetryQueue(new DrtRequestInsertionRetryParams()),
+				new UserSpecificStopTimeProvider(population), forkJoinPool, null);
+
+		requests = SyntheticScenarios.createRequests(network, population, REQUESTS_PER_STEP, TIME, random);
+		simStepEvent = new MobsimBeforeSimStepEvent<>(null, TIME);
+	}
+
+	@TearDown
+	public void tearDown() {
+		forkJoinPool.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS_PER_STEP)
+	public void requestSubmitted() {
+		for (DrtRequest request : requests) {
+			optimizer.requestSubmitted(request);
+		}
+
+		// hands the requests to the inserter, so that they do not pile up
+		optimizer.notifyMobsimBeforeSimStep(simStepEvent);
+	}
+
+	@Benchmark
+	public void notifyMobsimBeforeSimStep() {
+		optimizer.requestSubmitted(requests.get(0));
+		optimizer.notifyMobsimBeforeSimStep(simStepEvent);
+	}
+}
@@ -0,0 +1,99 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.drt.optimizer.insertion.CostCalculationStrategy;
+import org.matsim.contrib.drt.optimizer.insertion.InsertionDetourTimeCalculator.DetourTimeInfo;
+import org.matsim.contrib.drt.optimizer.insertion.InsertionDetourTimeCalculator.DropoffDetourInfo;
+import org.matsim.contrib.drt.optimizer.insertion.InsertionDetourTimeCalculator.PickupDetourInfo;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sinfonica.inclusive_ccam.heterogenous_users.drt.FairInsertionCostCalculator;
+import org.sinfonica.inclusive_ccam.heterogenous_users.drt.UserSpecificStopTimeProvider;
+
+/**
+ * Insertion costs of open requests, as during the insertion search: each invocation costs one insertion per vehicle of
+ * the fleet for the next request. The cached calculator looks up the stop duration of the request, which has been
+ * computed before (as for the first insertion of a request); the uncached variant is the calculator before caching,
+ * which computes the stop duration of the passengers on every insertion. The insertion itself is not read by the cost,
+ * only the detour times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FairInsertionCostCalculatorBenchmark {
+	private static final int REQUESTS = 256;
+
+	@Param({ "500" })
+	public int fleetSize;
+
+	@Param({ "cached", "uncached" })
+	public String variant;
+
+	private CostCalculationStrategy calculator;
+	private List<DrtRequest> requests;
+	private DetourTimeInfo[] detourTimeInfos;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		Network network = SyntheticScenarios.createGridNetwork(20);
+		Population population = SyntheticScenarios.createPopulation(10000, 0.5, 180.0, random);
+		UserSpecificStopTimeProvider stopTimeProvider = new UserSpecificStopTimeProvider(population);
+
+		calculator = switch (variant) {
+			case "cached" -> new FairInsertionCostCalculator(stopTimeProvider);
+			case "uncached" -> createUncachedCalculator(stopTimeProvider);
+			default -> throw new IllegalArgumentException("Unknown variant: " + variant);
+		};
+
+		requests = SyntheticScenarios.createRequests(network, population, REQUESTS, 8.0 * 3600.0, random);
+
+		detourTimeInfos = new DetourTimeInfo[fleetSize];
+		for (int i = 0; i < fleetSize; i++) {
+			double pickupTime = 8.0 * 3600.0 + random.nextInt(900);
+			detourTimeInfos[i] = new DetourTimeInfo(new PickupDetourInfo(pickupTime - 60.0, pickupTime, random.nextInt(300)),
+					new DropoffDetourInfo(pickupTime + 600.0 + random.nextInt(900), random.nextInt(300)));
+		}
+
+		for (DrtRequest request : requests) {
+			calculator.calcCost(request, null, detourTimeInfos[0]);
+		}
+	}
+
+	private static CostCalculationStrategy createUncachedCalculator(UserSpecificStopTimeProvider stopTimeProvider) {
+		CostCalculationStrategy delegate = new CostCalculationStrategy.RejectSoftConstraintViolations();
+		return (request, insertion, detourTimeInfo) -> delegate.calcCost(request, insertion, detourTimeInfo)
+				/ stopTimeProvider.calcStopDuration(request.getPassengerIds());
+	}
+
+	@Benchmark
+	public double calcCosts() {
+		next = (next + 1) % REQUESTS;
+		DrtRequest request = requests.get(next);
+
+		double sum = 0;
+		for (DetourTimeInfo detourTimeInfo : detourTimeInfos) {
+			sum += calculator.calcCost(request, null, detourTimeInfo);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,73 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.drt.optimizer.rebalancing.RebalancingStrategy.Relocation;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.FastHeuristicLinkBasedRelocationCalculator;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.LinkBasedRelocationCalculator;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.QuadTreeLinkBasedRelocationCalculator;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching of the plus-one rebalancing targets to the idle vehicles, which is the work that
+ * PlusOneRebalancingStrategy.calcRelocations delegates to its {@link LinkBasedRelocationCalculator}. A quarter of the
+ * fleet is idle and there are as many targets as idle vehicles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelocationCalculatorBenchmark {
+	@Param({ "100", "500", "1000", "5000" })
+	public int fleetSize;
+
+	@Param({ "fast-heuristic", "quadtree" })
+	public String relocationCalculator;
+
+	private LinkBasedRelocationCalculator calculator;
+	private List<DvrpVehicle> idleVehicles;
+	private List<Link> targetLinks;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		Network network = SyntheticScenarios.createGridNetwork(50);
+		idleVehicles = SyntheticScenarios.createIdleFleet(network, fleetSize / 4, random);
+
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		targetLinks = new ArrayList<>();
+		for (int i = 0; i < idleVehicles.size(); i++) {
+			targetLinks.add(links.get(random.nextInt(links.size())));
+		}
+
+		calculator = switch (relocationCalculator) {
+			case "fast-heuristic" -> new FastHeuristicLinkBasedRelocationCalculator();
+			case "quadtree" -> new QuadTreeLinkBasedRelocationCalculator();
+			default -> throw new IllegalStateException("Unknown relocation calculator: " + relocationCalculator);
+		};
+	}
+
+	@Benchmark
+	public List<Relocation> calcRelocations() {
+		// the fast heuristic removes matched vehicles from the list it is given, so each invocation gets a copy
+		return calculator.calcRelocations(targetLinks, new ArrayList<>(idleVehicles));
+	}
+}
@@ -0,0 +1,87 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.drt.optimizer.rebalancing.RebalancingStrategy.Relocation;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.FastHeuristicLinkBasedRelocationCalculator;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.QuadTreeLinkBasedRelocationCalculator;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.schedule.Schedules;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+/**
+ * Matching quality of the relocation calculators on the inputs of {@link RelocationCalculatorBenchmark}: for each
+ * fleet size and seed, both calculators get the same targets and (copies of) the same idle vehicles, and the number of
+ * relocations and their total straight-line distance are compared. Both match greedily in the order of the targets, so
+ * the totals should only differ through ties between equally distant vehicles, which are frequent on the grid. Run
+ * with
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.main=org.sinfonica.inclusive_ccam.benchmarks.RelocationQualityComparison
+ * </pre>
+ */
+public class RelocationQualityComparison {
+	private static final int[] FLEET_SIZES = { 100, 500, 1000, 5000 };
+	private static final int SEEDS = 10;
+
+	public static void main(String[] args) {
+		Network network = SyntheticScenarios.createGridNetwork(50);
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+
+		System.out.println("fleet_size;seed;fast_heuristic_relocations;quadtree_relocations;"
+				+ "fast_heuristic_distance;quadtree_distance;relative_difference");
+
+		for (int fleetSize : FLEET_SIZES) {
+			double fastHeuristicTotal = 0;
+			double quadTreeTotal = 0;
+
+			for (int seed = 0; seed < SEEDS; seed++) {
+				Random random = new Random(seed);
+				List<DvrpVehicle> idleVehicles = SyntheticScenarios.createIdleFleet(network, fleetSize / 4, random);
+
+				List<Link> targetLinks = new ArrayList<>();
+				for (int i = 0; i < idleVehicles.size(); i++) {
+					targetLinks.add(links.get(random.nextInt(links.size())));
+				}
+
+				// the fast heuristic removes matched vehicles from the list it is given
+				List<Relocation> fastHeuristic = new FastHeuristicLinkBasedRelocationCalculator().calcRelocations(
+						targetLinks, new ArrayList<>(idleVehicles));
+				List<Relocation> quadTree = new QuadTreeLinkBasedRelocationCalculator().calcRelocations(targetLinks,
+						new ArrayList<>(idleVehicles));
+
+				double fastHeuristicDistance = getTotalDistance(fastHeuristic);
+				double quadTreeDistance = getTotalDistance(quadTree);
+				fastHeuristicTotal += fastHeuristicDistance;
+				quadTreeTotal += quadTreeDistance;
+
+				System.out.printf("%d;%d;%d;%d;%.1f;%.1f;%.5f\n", fleetSize, seed, fastHeuristic.size(), quadTree.size(),
+						fastHeuristicDistance, quadTreeDistance, getRelativeDifference(quadTreeDistance, fastHeuristicDistance));
+			}
+
+			System.out.printf("%d;all;;;%.1f;%.1f;%.5f\n", fleetSize, fastHeuristicTotal, quadTreeTotal,
+					getRelativeDifference(quadTreeTotal, fastHeuristicTotal));
+		}
+	}
+
+	/**
+	 * Straight-line distance between the (last) link of each vehicle and its target, as measured by both calculators.
+	 */
+	static double getTotalDistance(List<Relocation> relocations) {
+		double distance = 0;
+		for (Relocation relocation : relocations) {
+			distance += CoordUtils.calcEuclideanDistance(
+					Schedules.getLastLinkInSchedule(relocation.vehicle).getToNode().getCoord(),
+					relocation.link.getToNode().getCoord());
+		}
+		return distance;
+	}
+
+	private static double getRelativeDifference(double value, double reference) {
+		return reference > 0 ? (value - reference) / reference : 0;
+	}
+}
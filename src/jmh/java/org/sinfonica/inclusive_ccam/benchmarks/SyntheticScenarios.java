@@ -0,0 +1,145 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.drt.schedule.DrtStayTask;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicleImpl;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicleSpecification;
+import org.matsim.contrib.dvrp.fleet.ImmutableDvrpVehicleSpecification;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+
+/**
+ * Grid networks, idle fleets, populations with interaction times and requests for the benchmarks, so that they run
+ * without any scenario files.
+ */
+final class SyntheticScenarios {
+	static final double SPACING = 200.0;
+
+	private SyntheticScenarios() {
+	}
+
+	/**
+	 * Square grid with links in both directions between neighbouring nodes.
+	 */
+	static Network createGridNetwork(int size) {
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory factory = network.getFactory();
+
+		Node[][] nodes = new Node[size][size];
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				nodes[x][y] = factory.createNode(Id.createNodeId(x + "_" + y), new Coord(x * SPACING, y * SPACING));
+				network.addNode(nodes[x][y]);
+			}
+		}
+
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				if (x + 1 < size) {
+					addLink(network, nodes[x][y], nodes[x + 1][y]);
+					addLink(network, nodes[x + 1][y], nodes[x][y]);
+				}
+
+				if (y + 1 < size) {
+					addLink(network, nodes[x][y], nodes[x][y + 1]);
+					addLink(network, nodes[x][y + 1], nodes[x][y]);
+				}
+			}
+		}
+
+		return network;
+	}
+
+	private static void addLink(Network network, Node fromNode, Node toNode) {
+		Link link = network.getFactory()
+				.createLink(Id.createLinkId(fromNode.getId() + "-" + toNode.getId()), fromNode, toNode);
+		link.setLength(SPACING);
+		link.setFreespeed(50.0 / 3.6);
+		link.setCapacity(1000.0);
+		link.setNumberOfLanes(1.0);
+		network.addLink(link);
+	}
+
+	/**
+	 * Vehicles on random links whose schedules are started and stay there for the whole day, i.e. idle vehicles.
+	 */
+	static List<DvrpVehicle> createIdleFleet(Network network, int fleetSize, Random random) {
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		List<DvrpVehicle> vehicles = new ArrayList<>(fleetSize);
+
+		for (int i = 0; i < fleetSize; i++) {
+			Link link = links.get(random.nextInt(links.size()));
+
+			DvrpVehicleSpecification specification = ImmutableDvrpVehicleSpecification.newBuilder() //
+					.id(Id.create("vehicle_" + i, DvrpVehicle.class)) //
+					.startLinkId(link.getId()) //
+					.capacity(4) //
+					.serviceBeginTime(0.0) //
+					.serviceEndTime(30.0 * 3600.0) //
+					.build();
+
+			DvrpVehicle vehicle = new DvrpVehicleImpl(specification, link);
+			vehicle.getSchedule().addTask(new DrtStayTask(0.0, specification.getServiceEndTime(), link));
+			vehicle.getSchedule().nextTask();
+			vehicles.add(vehicle);
+		}
+
+		return vehicles;
+	}
+
+	/**
+	 * Persons with the drtInteractionTime attribute, as assigned by RunSimulation.
+	 */
+	static Population createPopulation(int size, double vulnerableShare, double vulnerableTime, Random random) {
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+
+		for (int i = 0; i < size; i++) {
+			Person person = population.getFactory().createPerson(Id.createPersonId("person_" + i));
+			person.getAttributes().putAttribute("drtInteractionTime",
+					random.nextDouble() < vulnerableShare ? vulnerableTime : 60.0);
+			population.addPerson(person);
+		}
+
+		return population;
+	}
+
+	static List<DrtRequest> createRequests(Network network, Population population, int count, double time,
+			Random random) {
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		List<Person> persons = new ArrayList<>(population.getPersons().values());
+		List<DrtRequest> requests = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			Person person = persons.get(random.nextInt(persons.size()));
+
+			requests.add(DrtRequest.newBuilder() //
+					.id(Id.create("request_" + i, Request.class)) //
+					.submissionTime(time) //
+					.earliestStartTime(time) //
+					.latestStartTime(time + 600.0) //
+					.latestArrivalTime(time + 1800.0) //
+					.passengerIds(List.of(person.getId())) //
+					.mode("drt") //
+					.fromLink(links.get(random.nextInt(links.size()))) //
+					.toLink(links.get(random.nextInt(links.size()))) //
+					.build());
+		}
+
+		return requests;
+	}
+}
@@ -0,0 +1,59 @@
+package org.sinfonica.inclusive_ccam.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sinfonica.inclusive_ccam.heterogenous_users.drt.UserSpecificStopTimeProvider;
+
+/**
+ * Stop durations of single passengers, as computed for every submitted request and every insertion cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserSpecificStopTimeProviderBenchmark {
+	@Param({ "10000", "100000" })
+	public int populationSize;
+
+	private UserSpecificStopTimeProvider provider;
+	private List<Collection<Id<Person>>> passengers;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		Population population = SyntheticScenarios.createPopulation(populationSize, 0.5, 180.0, random);
+		provider = new UserSpecificStopTimeProvider(population);
+
+		passengers = new ArrayList<>();
+		for (int i = 0; i < 1024; i++) {
+			passengers.add(List.of(Id.createPersonId("person_" + random.nextInt(populationSize))));
+		}
+	}
+
+	@Benchmark
+	public double calcStopDuration() {
+		next = (next + 1) & 1023;
+		return provider.calcStopDuration(passengers.get(next));
+	}
+}
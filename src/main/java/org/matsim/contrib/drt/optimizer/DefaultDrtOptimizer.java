@@ -21,7 +21,9 @@ package org.matsim.contrib.drt.optimizer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.drt.optimizer.DispatchMetrics.Phase;
 import org.matsim.contrib.drt.optimizer.depot.DepotFinder;
 import org.matsim.contrib.drt.optimizer.insertion.UnplannedRequestInserter;
 import org.matsim.contrib.drt.optimizer.rebalancing.RebalancingStrategy;
@@ -35,20 +37,37 @@ import org.matsim.contrib.drt.stops.PassengerStopDurationProvider;
 import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
 import org.matsim.contrib.dvrp.fleet.Fleet;
 import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.contrib.dvrp.schedule.Schedule;
 import org.matsim.contrib.dvrp.schedule.ScheduleTimingUpdater;
+import org.matsim.contrib.dvrp.schedule.Task;
 import org.matsim.core.mobsim.framework.MobsimTimer;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
 import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
 import static org.matsim.contrib.drt.schedule.DrtTaskBaseType.STAY;
 
 /**
  * @author michalm
  */
-public class DefaultDrtOptimizer implements DrtOptimizer {
+public class DefaultDrtOptimizer implements DrtOptimizer, MobsimBeforeCleanupListener {
 	private static final Logger log = LogManager.getLogger(DefaultDrtOptimizer.class);
 
 	private final DrtConfigGroup drtCfg;
@@ -64,13 +83,50 @@ public class DefaultDrtOptimizer implements DrtOptimizer {
 	private final DrtRequestInsertionRetryQueue insertionRetryQueue;
 	private final int dispatchInterval;
 	private final PassengerStopDurationProvider passengerStopDurationProvider;
+	private final ForkJoinPool forkJoinPool;
+
+	@Nullable
+	private final DispatchMetrics dispatchMetrics;
+
+	// ordered by decreasing interaction time, FIFO among requests with the same interaction time
+	private final NavigableMap<UnplannedRequestKey, DrtRequest> unplannedRequests = new TreeMap<>();
+	private long submittedRequestCount = 0;
+
+	private long performedTimingUpdates = 0;
+	private long skippedTimingUpdates = 0;
+
+	// Vehicles that became idle, ordered by the begin time of their stay task. Insertions and relocations end the idle
+	// state without notifying the optimizer, so entries are validated (and dropped if stale) when they are read. A stale
+	// entry may have the same begin time and vehicle as a new one, so entries are told apart by their sequence number.
+	private final boolean trackIdleVehicles;
+	private final NavigableSet<IdleVehicle> idleVehicles = new TreeSet<>(
+			Comparator.comparingDouble(IdleVehicle::stayBeginTime)
+					.thenComparing(idle -> idle.vehicle().getId())
+					.thenComparingLong(IdleVehicle::sequence));
+	private long idleVehicleCount = 0;
 
-	private final LinkedList<DrtRequest> unplannedRequests = new LinkedList<>();
+	// Vehicles whose entry was dropped as stale. Stops that were appended after the stay task can be removed again
+	// without a task change (e.g. by the prebooking unscheduler), so these vehicles are checked until they are idle again
+	// or until their next task change, which adds a new entry if needed.
+	private final Set<DvrpVehicle> watchedVehicles = new LinkedHashSet<>();
+	private final Map<Id<DvrpVehicle>, Integer> fleetOrder = new HashMap<>();
+
+	private record IdleVehicle(double stayBeginTime, long sequence, DvrpVehicle vehicle, Task stayTask) {
+	}
+
+	private record UnplannedRequestKey(double interactionTime, long sequence) implements Comparable<UnplannedRequestKey> {
+		@Override
+		public int compareTo(UnplannedRequestKey other) {
+			int result = Double.compare(other.interactionTime, interactionTime);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
 
 	public DefaultDrtOptimizer(DrtConfigGroup drtCfg, Fleet fleet, MobsimTimer mobsimTimer, DepotFinder depotFinder,
 							   RebalancingStrategy rebalancingStrategy, DrtScheduleInquiry scheduleInquiry, ScheduleTimingUpdater scheduleTimingUpdater,
 							   EmptyVehicleRelocator relocator, UnplannedRequestInserter requestInserter, DrtRequestInsertionRetryQueue insertionRetryQueue,
-							   PassengerStopDurationProvider passengerStopDurationProvider) {
+							   PassengerStopDurationProvider passengerStopDurationProvider, ForkJoinPool forkJoinPool,
+							   @Nullable DispatchMetrics dispatchMetrics) {
 		this.drtCfg = drtCfg;
 		this.fleet = fleet;
 		this.mobsimTimer = mobsimTimer;
@@ -82,41 +138,137 @@ public class DefaultDrtOptimizer implements DrtOptimizer {
 		this.requestInserter = requestInserter;
 		this.insertionRetryQueue = insertionRetryQueue;
 		this.passengerStopDurationProvider = passengerStopDurationProvider;
+		this.forkJoinPool = forkJoinPool;
+		this.dispatchMetrics = dispatchMetrics;
 
 		rebalancingInterval = drtCfg.getRebalancingParams().map(rebalancingParams -> rebalancingParams.interval).orElse(null);
 
 		this.dispatchInterval = drtCfg.dispatchInterval;
+
+		this.trackIdleVehicles = rebalancingInterval != null || drtCfg.idleVehiclesReturnToDepots;
+		for (DvrpVehicle vehicle : fleet.getVehicles().values()) {
+			fleetOrder.put(vehicle.getId(), fleetOrder.size());
+		}
 	}
 
 	@Override
 	public void notifyMobsimBeforeSimStep(@SuppressWarnings("rawtypes") MobsimBeforeSimStepEvent e) {
+		if (dispatchMetrics != null) {
+			dispatchMetrics.beginStep(e.getSimulationTime(), unplannedRequests.size());
+		}
+
 		boolean scheduleTimingUpdated = false;
 		if( ((int) e.getSimulationTime()) % this.dispatchInterval == 0) {
 			if (!unplannedRequests.isEmpty() || insertionRetryQueue.hasRequestsToRetryNow(e.getSimulationTime())) {
-				for (DvrpVehicle v : fleet.getVehicles().values()) {
-					scheduleTimingUpdater.updateTimings(v);
-				}
+				updateTimings(e.getSimulationTime());
 				scheduleTimingUpdated = true;
 
-				requestInserter.scheduleUnplannedRequests(unplannedRequests);
+				// the inserter removes the requests through the iterator of the values view
+				long beginNanos = beginPhase();
+				requestInserter.scheduleUnplannedRequests(unplannedRequests.values());
+				endPhase(Phase.REQUEST_INSERTION, beginNanos);
+
+				if (dispatchMetrics != null) {
+					dispatchMetrics.insertionEnded();
+				}
 			}
 		}
 
+		long beginNanos = beginPhase();
 		relocateVehiclesToDepot(drtCfg.returnToDepotEvaluationInterval, drtCfg.returnToDepotTimeout);
+		endPhase(Phase.DEPOT_RELOCATION, beginNanos);
+
 		if (rebalancingInterval != null && e.getSimulationTime() % rebalancingInterval == 0) {
 			if (!scheduleTimingUpdated) {
-				for (DvrpVehicle v : fleet.getVehicles().values()) {
-					scheduleTimingUpdater.updateTimings(v);
-				}
+				updateTimings(e.getSimulationTime());
 			}
 
+			beginNanos = beginPhase();
 			rebalanceFleet();
+			endPhase(Phase.REBALANCING, beginNanos);
+		}
+	}
+
+	private long beginPhase() {
+		return dispatchMetrics == null ? 0 : System.nanoTime();
+	}
+
+	private void endPhase(Phase phase, long beginNanos) {
+		if (dispatchMetrics != null) {
+			dispatchMetrics.recordPhase(phase, beginNanos);
+		}
+	}
+
+	private void updateTimings(double now) {
+		long beginNanos = beginPhase();
+		var vehicles = fleet.getVehicles().values();
+		long performed;
+
+		if (vehicles.size() < drtCfg.parallelTimingUpdateThreshold) {
+			performed = vehicles.stream().mapToInt(v -> updateTimings(v, now)).sum();
+		} else {
+			// schedules are independent of each other, so the result does not depend on the order of updates
+			performed = forkJoinPool.submit(() -> vehicles.parallelStream().mapToInt(v -> updateTimings(v, now)).sum())
+					.join();
+		}
+
+		performedTimingUpdates += performed;
+		skippedTimingUpdates += vehicles.size() - performed;
+		endPhase(Phase.TIMING_UPDATES, beginNanos);
+	}
+
+	private int updateTimings(DvrpVehicle vehicle, double now) {
+		if (isTimingUpToDate(vehicle, now)) {
+			return 0;
+		}
+
+		scheduleTimingUpdater.updateTimings(vehicle);
+		return 1;
+	}
+
+	/**
+	 * The timing of a started schedule can only drift if the current task is tracked (a drive task that may be delayed
+	 * on its links) or if it runs past its planned end time (e.g. a stop that takes longer than planned). In all other
+	 * cases, the end time predicted by {@link ScheduleTimingUpdater#updateTimings} is the planned one and nothing
+	 * would change.
+	 */
+	private static boolean isTimingUpToDate(DvrpVehicle vehicle, double now) {
+		Schedule schedule = vehicle.getSchedule();
+		if (schedule.getStatus() != Schedule.ScheduleStatus.STARTED) {
+			return true;
+		}
+
+		Task currentTask = schedule.getCurrentTask();
+		return currentTask.getTaskTracker() == null && currentTask.getEndTime() >= now;
+	}
+
+	@Override
+	public void notifyMobsimBeforeCleanup(@SuppressWarnings("rawtypes") MobsimBeforeCleanupEvent e) {
+		log.info("Schedule timing updates: " + performedTimingUpdates + " performed, " + skippedTimingUpdates
+				+ " skipped (timing unchanged)");
+
+		if (dispatchMetrics != null) {
+			dispatchMetrics.close();
 		}
 	}
 
 	private void rebalanceFleet() {
+		recheckWatchedVehicles();
+
 		// right now we relocate only idle vehicles (vehicles that are being relocated cannot be relocated)
-		Stream<? extends DvrpVehicle> rebalancableVehicles = fleet.getVehicles().values().stream().filter(scheduleInquiry::isIdle);
+		// (passed on in fleet order, as when the whole fleet was filtered)
+		List<DvrpVehicle> idle = new ArrayList<>();
+		for (Iterator<IdleVehicle> iterator = idleVehicles.iterator(); iterator.hasNext(); ) {
+			IdleVehicle entry = iterator.next();
+			if (isStillIdle(entry)) {
+				idle.add(entry.vehicle());
+			} else {
+				dropIdleVehicle(iterator, entry);
+			}
+		}
+		idle.sort(Comparator.comparingInt(v -> fleetOrder.get(v.getId())));
+
+		Stream<? extends DvrpVehicle> rebalancableVehicles = idle.stream();
 		List<Relocation> relocations = rebalancingStrategy.calcRelocations(rebalancableVehicles, mobsimTimer.getTimeOfDay());
 
 		if (!relocations.isEmpty()) {
@@ -134,34 +286,78 @@ public class DefaultDrtOptimizer implements DrtOptimizer {
 	public void requestSubmitted(Request request) {
 		DrtRequest drtRequest = (DrtRequest) request;
 		double requestInteractionTime = this.passengerStopDurationProvider.calcPickupDuration(null, drtRequest);
-		int index = 0;
-		for(;index<unplannedRequests.size(); index++) {
-			DrtRequest otherRequest = unplannedRequests.get(index);
-			double otherInteractionTime = this.passengerStopDurationProvider.calcPickupDuration(null, otherRequest);
-			if(requestInteractionTime > otherInteractionTime) {
-				break;
-			}
+		unplannedRequests.put(new UnplannedRequestKey(requestInteractionTime, submittedRequestCount++), drtRequest);
+
+		if (dispatchMetrics != null) {
+			dispatchMetrics.requestSubmitted(drtRequest.getId());
 		}
-		unplannedRequests.add(index, drtRequest);
 	}
 
 	@Override
 	public void nextTask(DvrpVehicle vehicle) {
 		scheduleTimingUpdater.updateBeforeNextTask(vehicle);
 		vehicle.getSchedule().nextTask();
+
+		if (trackIdleVehicles) {
+			watchedVehicles.remove(vehicle);
+
+			if (scheduleInquiry.isIdle(vehicle)) {
+				addIdleVehicle(vehicle);
+			}
+		}
+	}
+
+	private void addIdleVehicle(DvrpVehicle vehicle) {
+		Task stayTask = vehicle.getSchedule().getCurrentTask();
+		idleVehicles.add(new IdleVehicle(stayTask.getBeginTime(), idleVehicleCount++, vehicle, stayTask));
+	}
+
+	private void dropIdleVehicle(Iterator<IdleVehicle> iterator, IdleVehicle entry) {
+		iterator.remove();
+
+		// still in the same task, so it may become idle again without a task change
+		if (entry.vehicle().getSchedule().getCurrentTask() == entry.stayTask()) {
+			watchedVehicles.add(entry.vehicle());
+		}
+	}
+
+	private void recheckWatchedVehicles() {
+		for (Iterator<DvrpVehicle> iterator = watchedVehicles.iterator(); iterator.hasNext(); ) {
+			DvrpVehicle vehicle = iterator.next();
+			if (scheduleInquiry.isIdle(vehicle)) {
+				addIdleVehicle(vehicle);
+				iterator.remove();
+			}
+		}
+	}
+
+	private boolean isStillIdle(IdleVehicle entry) {
+		return scheduleInquiry.isIdle(entry.vehicle()) && entry.vehicle().getSchedule().getCurrentTask() == entry.stayTask();
 	}
 
 	private void relocateVehiclesToDepot(double evaluationInterval, double timeout) {
 		if (drtCfg.idleVehiclesReturnToDepots && mobsimTimer.getTimeOfDay() % evaluationInterval == 0) {
-			fleet.getVehicles().values().stream()
-				.filter(scheduleInquiry::isIdle)
-				.filter(v -> stayTimeoutExceeded(v, timeout))
-				.forEach(v -> {
-					Link depotLink = depotFinder.findDepot(v);
-					if (depotLink != null) {
-						relocator.relocateVehicle(v, depotLink, EmptyVehicleRelocator.RELOCATE_VEHICLE_TO_DEPOT_TASK_TYPE);
-					}
-				});
+			// idle vehicles are ordered by the begin of their stay, so all later ones have not timed out either
+			recheckWatchedVehicles();
+
+			List<DvrpVehicle> timedOutVehicles = new ArrayList<>();
+			for (Iterator<IdleVehicle> iterator = idleVehicles.iterator(); iterator.hasNext(); ) {
+				IdleVehicle entry = iterator.next();
+				if (!isStillIdle(entry)) {
+					dropIdleVehicle(iterator, entry);
+				} else if (stayTimeoutExceeded(entry.vehicle(), timeout)) {
+					timedOutVehicles.add(entry.vehicle());
+				} else {
+					break;
+				}
+			}
+
+			for (DvrpVehicle v : timedOutVehicles) {
+				Link depotLink = depotFinder.findDepot(v);
+				if (depotLink != null) {
+					relocator.relocateVehicle(v, depotLink, EmptyVehicleRelocator.RELOCATE_VEHICLE_TO_DEPOT_TASK_TYPE);
+				}
+			}
 		}
 	}
 
@@ -0,0 +1,269 @@
+package org.matsim.contrib.drt.optimizer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.drt.optimizer.insertion.InsertionCostCalculator;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEventHandler;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestScheduledEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestScheduledEventHandler;
+import org.matsim.core.events.MobsimScopeEventHandler;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Wall clock timings of the phases of {@link DefaultDrtOptimizer#notifyMobsimBeforeSimStep}, lengths of the request
+ * queues and the number of insertion candidates evaluated per request, aggregated over intervals of simulated time and
+ * written to drt_dispatch_metrics_[mode].csv. Each interval has one row per metric with the number of samples, the
+ * mean, quantiles and the maximum; times are in microseconds. Quantiles come from log-linear histograms and are lower
+ * bounds within 25% of the exact values.
+ *
+ * <p>
+ * The optimizer only gets an instance if dispatchMetricsInterval is set, otherwise nothing is measured. The retry
+ * queue is not observable, so its length is derived: requests that were submitted and are neither scheduled, rejected
+ * nor waiting in the unplanned requests of the optimizer are waiting for a retry.
+ *
+ * <p>
+ * The vehicle entries built per dispatch step show how much of the insertion time goes into entries: the inserter
+ * builds the entries of the whole fleet once per step and then rebuilds only the entry of each vehicle that received a
+ * request.
+ */
+public class DispatchMetrics implements PassengerRequestScheduledEventHandler, PassengerRequestRejectedEventHandler,
+		MobsimScopeEventHandler {
+	enum Phase {
+		TIMING_UPDATES("timing_updates_us"), REQUEST_INSERTION("request_insertion_us"),
+		DEPOT_RELOCATION("depot_relocation_us"), REBALANCING("rebalancing_us");
+
+		private final String metric;
+
+		Phase(String metric) {
+			this.metric = metric;
+		}
+	}
+
+	private final String mode;
+	private final String outputPath;
+	private final double interval;
+
+	private final Histogram[] phaseNanos = new Histogram[Phase.values().length];
+	private final Histogram unplannedRequests = new Histogram();
+	private final Histogram retryQueue = new Histogram();
+	private final Histogram insertionCandidates = new Histogram();
+	private final Histogram vehicleEntries = new Histogram();
+
+	// scheduled and rejected events are handled outside the QSim thread
+	private final Set<Id<Request>> openRequests = ConcurrentHashMap.newKeySet();
+	private final Map<Id<Request>, AtomicInteger> candidateCounts = new ConcurrentHashMap<>();
+	private final AtomicInteger builtVehicleEntries = new AtomicInteger();
+
+	private double intervalBeginTime = Double.NaN;
+	private BufferedWriter writer;
+
+	public DispatchMetrics(String mode, String outputPath, double interval) {
+		this.mode = mode;
+		this.outputPath = outputPath;
+		this.interval = interval;
+
+		for (int i = 0; i < phaseNanos.length; i++) {
+			phaseNanos[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Called at the beginning of each time step, writes the previous interval once it is over and samples the queue
+	 * lengths.
+	 */
+	void beginStep(double time, int unplannedRequestCount) {
+		if (Double.isNaN(intervalBeginTime)) {
+			intervalBeginTime = Math.floor(time / interval) * interval;
+		} else if (time >= intervalBeginTime + interval) {
+			writeInterval();
+			intervalBeginTime = Math.floor(time / interval) * interval;
+		}
+
+		unplannedRequests.record(unplannedRequestCount);
+		retryQueue.record(Math.max(0, openRequests.size() - unplannedRequestCount));
+	}
+
+	void requestSubmitted(Id<Request> requestId) {
+		openRequests.add(requestId);
+	}
+
+	void recordPhase(Phase phase, long beginNanos) {
+		phaseNanos[phase.ordinal()].record(System.nanoTime() - beginNanos);
+	}
+
+	/**
+	 * Called after the inserter has processed the unplanned (and retried) requests of a time step.
+	 */
+	void insertionEnded() {
+		for (AtomicInteger count : candidateCounts.values()) {
+			insertionCandidates.record(count.get());
+		}
+
+		candidateCounts.clear();
+
+		vehicleEntries.record(builtVehicleEntries.getAndSet(0));
+	}
+
+	/**
+	 * Counts the insertions that the insertion search evaluates for each request.
+	 */
+	public InsertionCostCalculator countCandidates(InsertionCostCalculator delegate) {
+		return (drtRequest, insertion, detourTimeInfo) -> {
+			candidateCounts.computeIfAbsent(drtRequest.getId(), id -> new AtomicInteger()).incrementAndGet();
+			return delegate.calculate(drtRequest, insertion, detourTimeInfo);
+		};
+	}
+
+	/**
+	 * Counts the vehicle entries that the inserter builds.
+	 */
+	public VehicleEntry.EntryFactory countEntries(VehicleEntry.EntryFactory delegate) {
+		return (DvrpVehicle vehicle, double currentTime) -> {
+			builtVehicleEntries.incrementAndGet();
+			return delegate.create(vehicle, currentTime);
+		};
+	}
+
+	@Override
+	public void handleEvent(PassengerRequestScheduledEvent event) {
+		if (event.getMode().equals(mode)) {
+			openRequests.remove(event.getRequestId());
+		}
+	}
+
+	@Override
+	public void handleEvent(PassengerRequestRejectedEvent event) {
+		if (event.getMode().equals(mode)) {
+			openRequests.remove(event.getRequestId());
+		}
+	}
+
+	void close() {
+		if (!Double.isNaN(intervalBeginTime)) {
+			writeInterval();
+		}
+
+		try {
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeInterval() {
+		try {
+			if (writer == null) {
+				writer = IOUtils.getBufferedWriter(outputPath);
+				writer.write("time;metric;count;mean;p50;p90;p99;max\n");
+			}
+
+			for (Phase phase : Phase.values()) {
+				writeRow(phase.metric, phaseNanos[phase.ordinal()], 1e-3);
+			}
+
+			writeRow("unplanned_requests", unplannedRequests, 1.0);
+			writeRow("retry_queue", retryQueue, 1.0);
+			writeRow("insertion_candidates", insertionCandidates, 1.0);
+			writeRow("vehicle_entries", vehicleEntries, 1.0);
+			writer.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeRow(String metric, Histogram histogram, double scale) throws IOException {
+		writer.write(String.join(";", String.valueOf(intervalBeginTime), metric, String.valueOf(histogram.count),
+				String.valueOf(histogram.getMean() * scale), String.valueOf(histogram.getQuantile(0.5) * scale),
+				String.valueOf(histogram.getQuantile(0.9) * scale), String.valueOf(histogram.getQuantile(0.99) * scale),
+				String.valueOf(histogram.getMax() * scale)) + "\n");
+		histogram.reset();
+	}
+
+	/**
+	 * Counts of non-negative values in buckets of a quarter of a power of two: values below 4 are exact, larger values
+	 * fall into [m * 2^e, (m + 1) * 2^e) for m = 4..7.
+	 */
+	static final class Histogram {
+		private static final int BUCKETS = 4 * 62;
+
+		private final long[] counts = new long[BUCKETS];
+		private long count = 0;
+		private double sum = 0.0;
+		private long max = 0;
+
+		void record(long value) {
+			value = Math.max(0, value);
+			counts[getBucket(value)]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		double getMean() {
+			return count > 0 ? sum / count : Double.NaN;
+		}
+
+		double getMax() {
+			return count > 0 ? max : Double.NaN;
+		}
+
+		double getQuantile(double quantile) {
+			if (count == 0) {
+				return Double.NaN;
+			}
+
+			long rank = (long)Math.ceil(quantile * count);
+			long cumulative = 0;
+
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				cumulative += counts[bucket];
+
+				if (cumulative >= rank) {
+					return Math.min(getLowerBound(bucket), max);
+				}
+			}
+
+			return max;
+		}
+
+		void reset() {
+			Arrays.fill(counts, 0);
+			count = 0;
+			sum = 0.0;
+			max = 0;
+		}
+
+		static int getBucket(long value) {
+			if (value < 4) {
+				return (int)value;
+			}
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int mantissa = (int)(value >>> (exponent - 2)) & 3;
+			return 4 * (exponent - 1) + mantissa;
+		}
+
+		static long getLowerBound(int bucket) {
+			if (bucket < 4) {
+				return bucket;
+			}
+
+			int exponent = bucket / 4 + 1;
+			return (4L + bucket % 4) << (exponent - 2);
+		}
+	}
+}
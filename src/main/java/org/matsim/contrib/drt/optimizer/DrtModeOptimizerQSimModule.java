@@ -56,6 +56,7 @@ import org.matsim.contrib.dvrp.tracker.OnlineTrackerListener;
 import org.matsim.contrib.dvrp.vrpagent.VrpAgentLogic;
 import org.matsim.contrib.dvrp.vrpagent.VrpLegFactory;
 import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
 import org.matsim.core.mobsim.framework.MobsimTimer;
 import org.matsim.core.modal.ModalProviders;
 import org.matsim.core.router.costcalculators.TravelDisutilityFactory;
@@ -82,9 +83,19 @@ public class DrtModeOptimizerQSimModule extends AbstractDvrpModeQSimModule {
 						getter.getModal(DrtScheduleInquiry.class), getter.getModal(ScheduleTimingUpdater.class),
 						getter.getModal(EmptyVehicleRelocator.class), getter.getModal(UnplannedRequestInserter.class),
 						getter.getModal(DrtRequestInsertionRetryQueue.class),
-						getter.getModal(PassengerStopDurationProvider.class));
+						getter.getModal(PassengerStopDurationProvider.class),
+						getter.getModal(QSimScopeForkJoinPoolHolder.class).getPool(),
+						drtCfg.dispatchMetricsInterval > 0 ? getter.getModal(DispatchMetrics.class) : null);
 					}));
 
+		if (drtCfg.dispatchMetricsInterval > 0) {
+			bindModal(DispatchMetrics.class).toProvider(modalProvider(
+					getter -> new DispatchMetrics(getMode(), getter.get(OutputDirectoryHierarchy.class)
+							.getOutputFilename("drt_dispatch_metrics_" + getMode() + ".csv"), drtCfg.dispatchMetricsInterval)))
+					.asEagerSingleton();
+			addMobsimScopeEventHandlerBinding().to(modalKey(DispatchMetrics.class));
+		}
+
 		bindModal(DepotFinder.class).toProvider(
 				modalProvider(getter -> new NearestStartLinkAsDepot(getter.getModal(Fleet.class)))).asEagerSingleton();
 
@@ -98,17 +109,41 @@ public class DrtModeOptimizerQSimModule extends AbstractDvrpModeQSimModule {
 				getter -> new DefaultUnplannedRequestInserter(drtCfg, getter.getModal(Fleet.class),
 						getter.get(MobsimTimer.class), getter.get(EventsManager.class),
 						getter.getModal(RequestInsertionScheduler.class),
-						getter.getModal(VehicleEntry.EntryFactory.class), getter.getModal(DrtInsertionSearch.class),
+						getter.getModal(VehicleEntry.EntryFactory.class),
+						drtCfg.filterVehicleEntries ?
+								getter.getModal(FilteringDrtInsertionSearch.class) :
+								getter.getModal(DrtInsertionSearch.class),
 						getter.getModal(DrtRequestInsertionRetryQueue.class), getter.getModal(DrtOfferAcceptor.class),
 						getter.getModal(QSimScopeForkJoinPoolHolder.class).getPool(),
 						getter.getModal(PassengerStopDurationProvider.class)))).asEagerSingleton();
 
-		bindModal(InsertionCostCalculator.class).toProvider(modalProvider(
-				getter -> new DefaultInsertionCostCalculator(getter.getModal(CostCalculationStrategy.class))));
+		if (drtCfg.filterVehicleEntries) {
+			bindModal(VehicleEntryFilter.class).toProvider(modalProvider(
+					getter -> new SpatialGridVehicleEntryFilter(getter.getModal(Network.class),
+							getter.get(MobsimTimer.class), getter.getModal(VehicleEntry.EntryFactory.class),
+							drtCfg.maxWaitTime,
+							drtCfg.rejectRequestIfMaxWaitOrTravelTimeViolated))).asEagerSingleton();
+			bindModal(FilteringDrtInsertionSearch.class).toProvider(modalProvider(
+					getter -> new FilteringDrtInsertionSearch(getter.getModal(DrtInsertionSearch.class),
+							getter.getModal(VehicleEntryFilter.class)))).asEagerSingleton();
+		}
+
+		bindModal(InsertionCostCalculator.class).toProvider(modalProvider(getter -> {
+			InsertionCostCalculator insertionCostCalculator = new DefaultInsertionCostCalculator(
+					getter.getModal(CostCalculationStrategy.class));
+			return drtCfg.dispatchMetricsInterval > 0 ?
+					getter.getModal(DispatchMetrics.class).countCandidates(insertionCostCalculator) :
+					insertionCostCalculator;
+		}));
 
 		install(getInsertionSearchQSimModule(drtCfg));
 
-		bindModal(VehicleEntry.EntryFactory.class).toInstance(new VehicleDataEntryFactoryImpl());
+		if (drtCfg.dispatchMetricsInterval > 0) {
+			bindModal(VehicleEntry.EntryFactory.class).toProvider(modalProvider(
+					getter -> getter.getModal(DispatchMetrics.class).countEntries(new VehicleDataEntryFactoryImpl())));
+		} else {
+			bindModal(VehicleEntry.EntryFactory.class).toInstance(new VehicleDataEntryFactoryImpl());
+		}
 
 		bindModal(CostCalculationStrategy.class).to(drtCfg.rejectRequestIfMaxWaitOrTravelTimeViolated ?
 				CostCalculationStrategy.RejectSoftConstraintViolations.class :
@@ -0,0 +1,30 @@
+package org.matsim.contrib.drt.optimizer;
+
+import java.util.Collection;
+import java.util.Optional;
+
+import org.matsim.contrib.drt.optimizer.insertion.DrtInsertionSearch;
+import org.matsim.contrib.drt.optimizer.insertion.InsertionWithDetourData;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+
+/**
+ * Runs the insertion search only on the vehicle entries that the {@link VehicleEntryFilter} passes on.
+ */
+public class FilteringDrtInsertionSearch implements DrtInsertionSearch {
+	private final DrtInsertionSearch delegate;
+	private final VehicleEntryFilter vehicleEntryFilter;
+
+	public FilteringDrtInsertionSearch(DrtInsertionSearch delegate, VehicleEntryFilter vehicleEntryFilter) {
+		this.delegate = delegate;
+		this.vehicleEntryFilter = vehicleEntryFilter;
+	}
+
+	@Override
+	public Optional<InsertionWithDetourData> findBestInsertion(DrtRequest drtRequest,
+			Collection<VehicleEntry> vehicleEntries) {
+		Optional<InsertionWithDetourData> insertion = delegate.findBestInsertion(drtRequest,
+				vehicleEntryFilter.filter(drtRequest, vehicleEntries));
+		insertion.ifPresent(i -> vehicleEntryFilter.notifyInsertion(i.insertion.vehicleEntry.vehicle));
+		return insertion;
+	}
+}
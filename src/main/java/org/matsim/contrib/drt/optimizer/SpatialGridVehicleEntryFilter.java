@@ -0,0 +1,217 @@
+package org.matsim.contrib.drt.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.core.mobsim.framework.MobsimTimer;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+/**
+ * Keeps the start positions of the vehicle entries of a dispatch step in a uniform grid and passes on the vehicles
+ * that can reach the pickup of a request before its latest start time. The reachability test uses a free-flow lower
+ * bound: no link is traversed faster than its free speed, so the straight-line distance between the start of a vehicle
+ * and the pickup, divided by the highest straight-line speed of any link of the network, bounds the travel time from
+ * below. Serving other stops first only adds to this (the triangle inequality holds for straight-line distances), so
+ * only the start of each vehicle has to be indexed, not the positions of its next stops.
+ *
+ * <p>
+ * The entries are kept by vehicle id. When the search finds an insertion, the inserter replaces the entry of the
+ * vehicle, and the filter creates the new entry of the vehicle with the same factory, so that requests are filtered
+ * without going through all entries.
+ *
+ * <p>
+ * The insertion search rejects insertions with a pickup after the latest start time only if
+ * rejectRequestIfMaxWaitOrTravelTimeViolated is set; otherwise, all vehicles are passed on. The bound assumes that
+ * free speeds do not increase during the simulation (i.e. no network change events that raise them).
+ */
+public class SpatialGridVehicleEntryFilter implements VehicleEntryFilter {
+	private static final double DEFAULT_CELL_SIZE = 1000.0;
+
+	private record IndexedVehicle(Id<DvrpVehicle> id, Link startLink, double departureTime) {
+	}
+
+	private final MobsimTimer timer;
+	private final VehicleEntry.EntryFactory vehicleEntryFactory;
+	private final boolean enabled;
+	private final double maxSpeed;
+	private final double cellSize;
+
+	// grid of the current dispatch step
+	private final Map<Long, List<IndexedVehicle>> cells = new HashMap<>();
+	private final Map<Id<DvrpVehicle>, VehicleEntry> entriesByVehicle = new HashMap<>();
+	private final Set<DvrpVehicle> insertedVehicles = new LinkedHashSet<>();
+	private double indexTime = Double.NaN;
+	private double minDepartureTime;
+	private int minCellX;
+	private int maxCellX;
+	private int minCellY;
+	private int maxCellY;
+
+	public SpatialGridVehicleEntryFilter(Network network, MobsimTimer timer,
+			VehicleEntry.EntryFactory vehicleEntryFactory, double maxWaitTime,
+			boolean rejectRequestIfMaxWaitOrTravelTimeViolated) {
+		this.timer = timer;
+		this.vehicleEntryFactory = vehicleEntryFactory;
+		this.maxSpeed = getMaxStraightLineSpeed(network);
+		this.enabled = rejectRequestIfMaxWaitOrTravelTimeViolated && Double.isFinite(maxSpeed) && maxSpeed > 0;
+
+		// a query for a request with the maximum wait time covers about 9 x 9 cells
+		double cellSize = maxWaitTime * maxSpeed / 4.0;
+		this.cellSize = Double.isFinite(cellSize) && cellSize > 0 ? cellSize : DEFAULT_CELL_SIZE;
+	}
+
+	/**
+	 * A vehicle waits at the end of its start link, and reaching the pickup means arriving at the end of the pickup
+	 * link, so both are located at the to-node of their link. A vehicle on the pickup link is already there.
+	 */
+	static Coord getPosition(Link link) {
+		return link.getToNode().getCoord();
+	}
+
+	/**
+	 * Free-flow lower bound test: false only if the vehicle cannot arrive at the pickup before the latest start time
+	 * of the request, even at the highest straight-line speed of the network.
+	 */
+	static boolean canReachPickup(Link startLink, double departureTime, DrtRequest request, double maxSpeed) {
+		double distance = CoordUtils.calcEuclideanDistance(getPosition(startLink), getPosition(request.getFromLink()));
+		return departureTime + distance / maxSpeed <= request.getLatestStartTime();
+	}
+
+	/**
+	 * The highest speed at which a vehicle can approach its destination in a straight line.
+	 */
+	static double getMaxStraightLineSpeed(Network network) {
+		double maxSpeed = 0.0;
+
+		for (Link link : network.getLinks().values()) {
+			double distance = CoordUtils.calcEuclideanDistance(link.getFromNode().getCoord(), link.getToNode().getCoord());
+
+			if (distance > 0.0) {
+				// links shorter than the distance between their nodes allow to move faster than the free speed
+				maxSpeed = Math.max(maxSpeed, link.getLength() > 0.0 ?
+						link.getFreespeed() * distance / link.getLength() :
+						Double.POSITIVE_INFINITY);
+			}
+		}
+
+		return maxSpeed;
+	}
+
+	@Override
+	public Collection<VehicleEntry> filter(DrtRequest request, Collection<VehicleEntry> vehicleEntries) {
+		if (!enabled) {
+			return vehicleEntries;
+		}
+
+		// insertions change the stops of a vehicle but not its start, so the grid is built once per step
+		if (timer.getTimeOfDay() != indexTime) {
+			buildGrid(vehicleEntries);
+		} else {
+			updateInsertedVehicles();
+		}
+
+		Coord pickupCoord = getPosition(request.getFromLink());
+		double radius = (request.getLatestStartTime() - minDepartureTime) * maxSpeed;
+		if (radius < 0.0 || cells.isEmpty()) {
+			return List.of();
+		}
+
+		int fromX = Math.max(minCellX, getCell(pickupCoord.getX() - radius));
+		int toX = Math.min(maxCellX, getCell(pickupCoord.getX() + radius));
+		int fromY = Math.max(minCellY, getCell(pickupCoord.getY() - radius));
+		int toY = Math.min(maxCellY, getCell(pickupCoord.getY() + radius));
+
+		List<VehicleEntry> candidates = new ArrayList<>();
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				List<IndexedVehicle> cell = cells.get(getKey(x, y));
+
+				if (cell != null) {
+					for (IndexedVehicle vehicle : cell) {
+						if (canReachPickup(vehicle.startLink(), vehicle.departureTime(), request, maxSpeed)) {
+							// no entry if the vehicle cannot take further requests after an insertion
+							VehicleEntry vehicleEntry = entriesByVehicle.get(vehicle.id());
+							if (vehicleEntry != null) {
+								candidates.add(vehicleEntry);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return candidates;
+	}
+
+	@Override
+	public void notifyInsertion(DvrpVehicle vehicle) {
+		insertedVehicles.add(vehicle);
+	}
+
+	/**
+	 * Creates the entries of the vehicles that received an insertion since the last request, as the inserter did after
+	 * scheduling the insertion.
+	 */
+	private void updateInsertedVehicles() {
+		for (DvrpVehicle vehicle : insertedVehicles) {
+			VehicleEntry vehicleEntry = vehicleEntryFactory.create(vehicle, indexTime);
+
+			if (vehicleEntry == null) {
+				entriesByVehicle.remove(vehicle.getId());
+			} else {
+				entriesByVehicle.put(vehicle.getId(), vehicleEntry);
+			}
+		}
+
+		insertedVehicles.clear();
+	}
+
+	private void buildGrid(Collection<VehicleEntry> vehicleEntries) {
+		cells.clear();
+		entriesByVehicle.clear();
+		insertedVehicles.clear();
+		indexTime = timer.getTimeOfDay();
+		minDepartureTime = Double.POSITIVE_INFINITY;
+		minCellX = Integer.MAX_VALUE;
+		maxCellX = Integer.MIN_VALUE;
+		minCellY = Integer.MAX_VALUE;
+		maxCellY = Integer.MIN_VALUE;
+
+		for (VehicleEntry vehicleEntry : vehicleEntries) {
+			Link startLink = vehicleEntry.start.getLink();
+			Coord coord = getPosition(startLink);
+			double departureTime = vehicleEntry.start.getDepartureTime();
+
+			int x = getCell(coord.getX());
+			int y = getCell(coord.getY());
+			cells.computeIfAbsent(getKey(x, y), key -> new ArrayList<>())
+					.add(new IndexedVehicle(vehicleEntry.vehicle.getId(), startLink, departureTime));
+			entriesByVehicle.put(vehicleEntry.vehicle.getId(), vehicleEntry);
+
+			minDepartureTime = Math.min(minDepartureTime, departureTime);
+			minCellX = Math.min(minCellX, x);
+			maxCellX = Math.max(maxCellX, x);
+			minCellY = Math.min(minCellY, y);
+			maxCellY = Math.max(maxCellY, y);
+		}
+	}
+
+	private int getCell(double coordinate) {
+		return (int)Math.floor(coordinate / cellSize);
+	}
+
+	private static long getKey(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+}
@@ -0,0 +1,22 @@
+package org.matsim.contrib.drt.optimizer;
+
+import java.util.Collection;
+
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+
+/**
+ * Pre-filter stage of the insertion search: passes on the vehicle entries that may serve a request, so that the
+ * insertion search (extensive, selective or repeated selective) does not have to look at the whole fleet. Filters must
+ * not drop vehicles for which the search could find a feasible insertion.
+ */
+public interface VehicleEntryFilter {
+	Collection<VehicleEntry> filter(DrtRequest request, Collection<VehicleEntry> vehicleEntries);
+
+	/**
+	 * Called when the search found an insertion into the vehicle. The inserter then replaces the entry of the vehicle,
+	 * so filters that keep entries between requests have to replace theirs as well.
+	 */
+	default void notifyInsertion(DvrpVehicle vehicle) {
+	}
+}
@@ -0,0 +1,62 @@
+package org.matsim.contrib.drt.optimizer.rebalancing.plusOne;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.drt.optimizer.rebalancing.RebalancingStrategy.Relocation;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.schedule.Schedules;
+import org.matsim.core.utils.collections.QuadTree;
+
+/**
+ * Greedy nearest-vehicle matching like {@link FastHeuristicLinkBasedRelocationCalculator}, but the remaining vehicles
+ * are kept in a quad tree over the coordinates of their (last) links. Each target link takes the closest remaining
+ * vehicle, in the order of the target list, so the matching is O(targets * log(vehicles)) instead of O(targets *
+ * vehicles). The resulting relocations are the same except for ties between equally distant vehicles.
+ */
+public class QuadTreeLinkBasedRelocationCalculator implements LinkBasedRelocationCalculator {
+	@Override
+	public List<Relocation> calcRelocations(List<Link> targetLinks, List<? extends DvrpVehicle> rebalancableVehicles) {
+		List<Relocation> relocations = new ArrayList<>();
+		if (targetLinks.isEmpty() || rebalancableVehicles.isEmpty()) {
+			return relocations;
+		}
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+
+		List<Coord> vehicleCoords = new ArrayList<>(rebalancableVehicles.size());
+		for (DvrpVehicle vehicle : rebalancableVehicles) {
+			Coord coord = Schedules.getLastLinkInSchedule(vehicle).getToNode().getCoord();
+			vehicleCoords.add(coord);
+			minX = Math.min(minX, coord.getX());
+			minY = Math.min(minY, coord.getY());
+			maxX = Math.max(maxX, coord.getX());
+			maxY = Math.max(maxY, coord.getY());
+		}
+
+		QuadTree<DvrpVehicle> vehicleTree = new QuadTree<>(minX, minY, maxX, maxY);
+		for (int i = 0; i < vehicleCoords.size(); i++) {
+			vehicleTree.put(vehicleCoords.get(i).getX(), vehicleCoords.get(i).getY(), rebalancableVehicles.get(i));
+		}
+
+		for (Link targetLink : targetLinks) {
+			Coord targetCoord = targetLink.getToNode().getCoord();
+			DvrpVehicle nearestVehicle = vehicleTree.getClosest(targetCoord.getX(), targetCoord.getY());
+
+			Coord vehicleCoord = Schedules.getLastLinkInSchedule(nearestVehicle).getToNode().getCoord();
+			vehicleTree.remove(vehicleCoord.getX(), vehicleCoord.getY(), nearestVehicle);
+			relocations.add(new Relocation(nearestVehicle, targetLink));
+
+			if (vehicleTree.size() == 0) {
+				break;
+			}
+		}
+
+		return relocations;
+	}
+}
@@ -213,6 +213,19 @@ public class DrtConfigGroup extends ReflectiveConfigGroupWithConfigurableParamet
 	@Positive
 	public int numberOfThreads = Runtime.getRuntime().availableProcessors();
 
+	@Parameter
+	@Comment("Minimum fleet size from which vehicle schedule timings are updated in parallel (using numberOfThreads"
+			+ " threads) before dispatching and rebalancing. Smaller fleets are updated serially.")
+	@PositiveOrZero
+	public int parallelTimingUpdateThreshold = 500;
+
+	@Parameter
+	@Comment("Interval (in seconds of simulated time) in which the timings of the dispatch phases, the lengths of the"
+			+ " request queues and the number of insertion candidates per request are aggregated and written to"
+			+ " drt_dispatch_metrics_[mode].csv. 0 (default) disables the measurements.")
+	@PositiveOrZero
+	public int dispatchMetricsInterval = 0;
+
 	@Parameter
 	@Comment("Store planned unshared drt route as a link sequence")
 	public boolean storeUnsharedPath = false; // If true, the planned unshared path is stored and exported in plans
@@ -220,6 +233,13 @@ public class DrtConfigGroup extends ReflectiveConfigGroupWithConfigurableParamet
 	@Parameter
 	@Positive
 	public int dispatchInterval = 1;
+
+	@Parameter
+	@Comment("If true, the insertion search only considers the vehicles passed on by the modal VehicleEntryFilter."
+			+ " By default, this is a spatial grid of the vehicle positions that passes on the vehicles that can reach"
+			+ " the pickup before the latest start time at the highest free speed of the network. Only filters if"
+			+ " rejectRequestIfMaxWaitOrTravelTimeViolated is true. False by default.")
+	public boolean filterVehicleEntries = false;
 	
 	@NotNull
 	private DrtInsertionSearchParams drtInsertionSearchParams;
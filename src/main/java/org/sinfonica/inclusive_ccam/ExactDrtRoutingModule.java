@@ -1,32 +1,74 @@
 package org.sinfonica.inclusive_ccam;
 
-import org.matsim.alonso_mora.travel_time.MatrixTravelTimeEstimator;
+import java.nio.file.Path;
+
+import javax.annotation.Nullable;
+
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.contrib.drt.optimizer.insertion.DetourTimeEstimator;
+import org.matsim.contrib.dvrp.path.VrpPaths;
 import org.matsim.contrib.dvrp.run.AbstractDvrpModeQSimModule;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
 import org.matsim.core.router.util.TravelTime;
+import org.sinfonica.inclusive_ccam.travel_time.TravelTimeMatrix;
+import org.sinfonica.inclusive_ccam.travel_time.TravelTimeMatrixRegistry;
 
 public class ExactDrtRoutingModule extends AbstractDvrpModeQSimModule {
+	private static final double MATRIX_DEPARTURE_TIME = 8.5 * 3600.0;
+
+	@Nullable
+	private final Path matrixCachePath;
+
 	protected ExactDrtRoutingModule(String mode) {
+		this(mode, null);
+	}
+
+	/**
+	 * @param matrixCachePath directory in which travel time matrices are stored and reused across runs, or null to
+	 *                        compute the matrix in memory
+	 */
+	protected ExactDrtRoutingModule(String mode, @Nullable Path matrixCachePath) {
 		super(mode);
+		this.matrixCachePath = matrixCachePath;
 	}
 
 	@Override
 	protected void configureQSim() {
-		bindModal(DetourTimeEstimator.class).toProvider(modalProvider(getter -> {
-			TravelTime travelTime = getter.getModal(TravelTime.class);
-			Network network = getter.getModal(Network.class);
+		// the matrix is shared with all concurrent QSims on the same network and released when this QSim ends
+		addModalComponent(SharedTravelTimeMatrix.class, modalProvider(getter -> new SharedTravelTimeMatrix(
+				TravelTimeMatrixRegistry.acquire(getter.getModal(Network.class), getter.getModal(TravelTime.class),
+						MATRIX_DEPARTURE_TIME, matrixCachePath))));
 
-			// use the exact calculator from AM which builds a link-to-link matrix upfront
-			MatrixTravelTimeEstimator estimator = MatrixTravelTimeEstimator.create(network, travelTime, 8.5 * 3600.0);
+		bindModal(DetourTimeEstimator.class).toProvider(modalProvider(getter -> {
+			// use an exact node-to-node matrix which is built upfront (or mapped from the cache)
+			TravelTimeMatrix matrix = getter.getModal(SharedTravelTimeMatrix.class).matrix;
 
 			return new DetourTimeEstimator() {
 				@Override
 				public double estimateTime(Link from, Link to, double departureTime) {
-					return estimator.estimateTravelTime(from, to, departureTime, 0.0);
+					if (from == to) {
+						return 0.0;
+					}
+
+					return VrpPaths.FIRST_LINK_TT + matrix.getTravelTime(from.getToNode(), to.getFromNode())
+							+ matrix.getLinkTravelTime(to);
 				}
 			};
 		}));
 	}
+
+	static class SharedTravelTimeMatrix implements MobsimBeforeCleanupListener {
+		private final TravelTimeMatrix matrix;
+
+		SharedTravelTimeMatrix(TravelTimeMatrix matrix) {
+			this.matrix = matrix;
+		}
+
+		@Override
+		public void notifyMobsimBeforeCleanup(@SuppressWarnings("rawtypes") MobsimBeforeCleanupEvent e) {
+			TravelTimeMatrixRegistry.release(matrix);
+		}
+	}
 }
@@ -0,0 +1,173 @@
+package org.sinfonica.inclusive_ccam;
+
+import org.matsim.core.config.CommandLine;
+import org.sinfonica.inclusive_ccam.analysis.AbortThresholds;
+import org.sinfonica.inclusive_ccam.analysis.InfeasibilityMonitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Finds the smallest fleet size on a grid whose rejection rates meet the targets, assuming that rejection rates do not
+ * increase with the fleet size. Starting from a guess, the search gallops towards the other side until the answer is
+ * bracketed and then bisects. Fleet sizes that were already simulated are read from their output.
+ */
+class FleetSizeSearch {
+    /**
+     * Runs the simulation with the given fleet size into its output directory, with the {@link #getAbortArgs abort
+     * options} of the targets and overwriting any output of an earlier run.
+     */
+    interface Simulation {
+        void run(int fleetSize) throws CommandLine.ConfigurationException;
+    }
+
+    private final int[] fleetSizes;
+    private final IntFunction<String> outputDirectories;
+    private final Simulation simulation;
+    private final double targetVulnerableRejectionRate;
+    private final double targetNonVulnerableRejectionRate;
+
+    private final Map<Integer, Boolean> feasibility = new HashMap<>();
+
+    FleetSizeSearch(int[] fleetSizes, IntFunction<String> outputDirectories, Simulation simulation, double targetVulnerableRejectionRate, double targetNonVulnerableRejectionRate) {
+        this.fleetSizes = fleetSizes;
+        this.outputDirectories = outputDirectories;
+        this.simulation = simulation;
+        this.targetVulnerableRejectionRate = targetVulnerableRejectionRate;
+        this.targetNonVulnerableRejectionRate = targetNonVulnerableRejectionRate;
+    }
+
+    /**
+     * Options that abort the simulations as soon as they cannot meet the targets anymore, this is all the search needs
+     * to know about them.
+     */
+    static String[] getAbortArgs(double targetVulnerableRejectionRate, double targetNonVulnerableRejectionRate) {
+        return new String[]{
+                "--abort-vulnerable-rejection-rate", String.valueOf(targetVulnerableRejectionRate),
+                "--abort-non-vulnerable-rejection-rate", String.valueOf(targetNonVulnerableRejectionRate)
+        };
+    }
+
+    static boolean meetsTargets(double vulnerableRejectionRate, double nonVulnerableRejectionRate, double targetVulnerableRejectionRate, double targetNonVulnerableRejectionRate) {
+        // NaN: no requests of that class
+        return !(vulnerableRejectionRate > targetVulnerableRejectionRate) && !(nonVulnerableRejectionRate > targetNonVulnerableRejectionRate);
+    }
+
+    /**
+     * Number of fleet sizes that were simulated or read from earlier simulations.
+     */
+    int getSimulationCount() {
+        return feasibility.size();
+    }
+
+    /**
+     * Returns the index of the smallest fleet size that meets the targets, or -1 if none does.
+     */
+    int findSmallestFeasible(int guess) throws CommandLine.ConfigurationException {
+        int lower = -1; // known to miss the targets
+        int upper = fleetSizes.length; // known to meet the targets, or beyond the grid
+        int step = 1;
+
+        if (isFeasible(guess)) {
+            upper = guess;
+            while (upper > 0) {
+                int probe = Math.max(0, upper - step);
+                if (isFeasible(probe)) {
+                    upper = probe;
+                    step *= 2;
+                } else {
+                    lower = probe;
+                    break;
+                }
+            }
+        } else {
+            lower = guess;
+            while (lower < fleetSizes.length - 1) {
+                int probe = Math.min(fleetSizes.length - 1, lower + step);
+                if (isFeasible(probe)) {
+                    upper = probe;
+                    break;
+                } else {
+                    lower = probe;
+                    step *= 2;
+                }
+            }
+        }
+
+        while (upper - lower > 1) {
+            int middle = (lower + upper) / 2;
+            if (isFeasible(middle)) {
+                upper = middle;
+            } else {
+                lower = middle;
+            }
+        }
+
+        return upper < fleetSizes.length ? upper : -1;
+    }
+
+    private boolean isFeasible(int index) throws CommandLine.ConfigurationException {
+        Boolean feasible = feasibility.get(index);
+
+        if (feasible == null) {
+            int fleetSize = fleetSizes[index];
+            String outputDirectory = outputDirectories.apply(fleetSize);
+            AbortThresholds targetThresholds = new AbortThresholds(Double.NaN, targetVulnerableRejectionRate, targetNonVulnerableRejectionRate, Double.NaN);
+
+            // runs aborted under stricter thresholds than the targets (or under others) may still meet the targets
+            if (RunBenchmark.isFinished(outputDirectory, targetThresholds) && Files.exists(Path.of(outputDirectory, "drt_kpis_drt.csv"))) {
+                System.out.println("Reusing simulation with outputDirectory " + outputDirectory);
+            } else {
+                simulation.run(fleetSize);
+            }
+
+            if (InfeasibilityMonitor.isInfeasible(Path.of(outputDirectory))) {
+                feasible = false;
+                System.out.printf("Fleet size %d: aborted as infeasible -> misses targets\n", fleetSize);
+            } else {
+                double[] rejectionRates = readRejectionRates(outputDirectory);
+                feasible = meetsTargets(rejectionRates[0], rejectionRates[1], targetVulnerableRejectionRate, targetNonVulnerableRejectionRate);
+                System.out.printf("Fleet size %d: vulnerable rejection rate %f, non vulnerable rejection rate %f -> %s\n",
+                        fleetSize, rejectionRates[0], rejectionRates[1], feasible ? "meets targets" : "misses targets");
+            }
+
+            feasibility.put(index, feasible);
+        }
+
+        return feasible;
+    }
+
+    /**
+     * Returns the vulnerable and non vulnerable rejection rates from drt_kpis_drt.csv.
+     */
+    private static double[] readRejectionRates(String outputDirectory) {
+        Path kpiPath = Path.of(outputDirectory, "drt_kpis_drt.csv");
+
+        try {
+            double[] rejectionRates = new double[]{Double.NaN, Double.NaN};
+            List<String> lines = Files.readAllLines(kpiPath);
+            List<String> header = List.of(lines.get(0).split(";"));
+            int rejectionRateIndex = header.indexOf("rejection_rate");
+
+            for (String line : lines.subList(1, lines.size())) {
+                String[] values = line.split(";");
+                switch (values[0]) {
+                    case "vulnerable" -> rejectionRates[0] = Double.parseDouble(values[rejectionRateIndex]);
+                    case "non_vulnerable" -> rejectionRates[1] = Double.parseDouble(values[rejectionRateIndex]);
+                    default -> {
+                    }
+                }
+            }
+
+            return rejectionRates;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.sinfonica.inclusive_ccam;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.drt.optimizer.insertion.DetourTimeEstimator;
+import org.matsim.contrib.dvrp.run.AbstractDvrpModeQSimModule;
+import org.matsim.core.router.util.TravelTime;
+import org.sinfonica.inclusive_ccam.travel_time.LazyTravelTimeEstimator;
+
+import com.google.inject.Singleton;
+
+public class LazyDrtRoutingModule extends AbstractDvrpModeQSimModule {
+	static final double DEFAULT_TIME_BIN_SIZE = 900.0;
+	static final int DEFAULT_MAXIMUM_TREES = 2000;
+
+	private final double timeBinSize;
+	private final int maximumTrees;
+
+	protected LazyDrtRoutingModule(String mode) {
+		this(mode, DEFAULT_TIME_BIN_SIZE, DEFAULT_MAXIMUM_TREES);
+	}
+
+	protected LazyDrtRoutingModule(String mode, double timeBinSize, int maximumTrees) {
+		super(mode);
+		this.timeBinSize = timeBinSize;
+		this.maximumTrees = maximumTrees;
+	}
+
+	@Override
+	protected void configureQSim() {
+		// one instance per QSim so that all users share the cached trees
+		bindModal(DetourTimeEstimator.class).toProvider(modalProvider(getter -> {
+			TravelTime travelTime = getter.getModal(TravelTime.class);
+			Network network = getter.getModal(Network.class);
+			return new LazyTravelTimeEstimator(network, travelTime, timeBinSize, maximumTrees);
+		})).in(Singleton.class);
+	}
+}
@@ -1,5 +1,6 @@
 package org.sinfonica.inclusive_ccam;
 
+import com.google.common.collect.ObjectArrays;
 import org.matsim.core.config.CommandLine;
 
 import java.util.Locale;
@@ -9,8 +10,18 @@ public class RunAllBenchmark {
     public static void main(String[] args) throws CommandLine.ConfigurationException {
         CommandLine commandLine = new CommandLine.Builder(args)
                 .requireOptions("config-path")
+                .allowOptions("search", "target-rejection-rate", "target-vulnerable-rejection-rate", "target-non-vulnerable-rejection-rate")
+                .allowOptions("common-random-numbers")
                 .build();
 
+        // all variants run in this JVM and share the cached scenario, common random numbers align their users
+        String[] fleetSizingArgs = new String[0];
+        for (String option : new String[]{"search", "target-rejection-rate", "target-vulnerable-rejection-rate", "target-non-vulnerable-rejection-rate", "common-random-numbers"}) {
+            if (commandLine.hasOption(option)) {
+                fleetSizingArgs = ObjectArrays.concat(fleetSizingArgs, new String[]{"--" + option, commandLine.getOptionStrict(option)}, String.class);
+            }
+        }
+
         double[] vulnerableProbabilities = new double[]{0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1};
         int[] vulnerableInteractionTimes = new int[]{120, 180, 240, 300};
 
@@ -18,11 +29,12 @@ public class RunAllBenchmark {
             String probabilityString = String.format(String.format(Locale.US, "%.1f", probability));
             for(int vulnerableTime: vulnerableInteractionTimes) {
                 String timeString = String.format(Locale.US, "%d", vulnerableTime);
-                RunFleetSizing.main(new String[] {
+                // ascending vulnerable shares, so that a bisection search can start from the result of the previous share
+                RunFleetSizing.main(ObjectArrays.concat(new String[] {
                         "--config-path", commandLine.getOptionStrict("config-path"),
                         "--vulnerable-probability", probabilityString,
                         "--vulnerable-time", timeString,
-                });
+                }, fleetSizingArgs, String.class));
             }
         }
 
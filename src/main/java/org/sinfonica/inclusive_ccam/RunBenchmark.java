@@ -1,24 +1,37 @@
 package org.sinfonica.inclusive_ccam;
 
+import com.google.common.collect.ObjectArrays;
 import com.google.common.collect.Sets;
 import org.matsim.core.config.CommandLine;
+import org.sinfonica.inclusive_ccam.analysis.AbortThresholds;
+import org.sinfonica.inclusive_ccam.analysis.InfeasibilityMonitor;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 public class RunBenchmark {
 
     public static class SimTask implements Runnable {
 
         private final String[] args;
+        private final double estimatedCost;
 
         public SimTask(String[] args) {
+            this(args, 1.0);
+        }
+
+        public SimTask(String[] args, double estimatedCost) {
             this.args = args;
+            this.estimatedCost = estimatedCost;
+        }
+
+        public double getEstimatedCost() {
+            return estimatedCost;
         }
 
         @Override
@@ -31,14 +44,173 @@ public class RunBenchmark {
         }
     }
 
+    /**
+     * Relative runtime of a simulation, only used to start long simulations first. Insertion search grows with the fleet
+     * size, longer stops of vulnerable users and prebooked requests keep more requests in the schedules, and minimizing
+     * passenger delays evaluates more insertions.
+     */
+    static double estimateCost(int fleetSize, double vulnerableProbability, int vulnerableTime, double prebookingShare, boolean minimizePassengerDelay) {
+        double cost = fleetSize;
+        cost *= 1.0 + vulnerableProbability * Math.max(0.0, vulnerableTime / 60.0 - 1.0);
+        cost *= 1.0 + prebookingShare;
+        cost *= minimizePassengerDelay ? 1.5 : 1.0;
+        return cost;
+    }
+
+    /**
+     * Runs the simulations in the given order. With claims, simulations that are claimed by other processes are
+     * retried after the wait interval until they are finished or their claim turns stale.
+     */
+    private static void runSimulations(List<String> outputDirectories, Map<String, SimTask> simulationTasks, int parallelSims, SweepClaims claims, long waitSeconds, AbortThresholds abortThresholds) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelSims);
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<>(executor);
+
+        List<String> pending = outputDirectories;
+        int finished = 0;
+
+        try {
+            while (!pending.isEmpty()) {
+                Map<Future<Boolean>, String> submitted = new HashMap<>();
+                for (String outputDirectory : pending) {
+                    submitted.put(completionService.submit(() -> runClaimed(outputDirectory, simulationTasks.get(outputDirectory), claims, abortThresholds)), outputDirectory);
+                }
+
+                List<String> deferred = new ArrayList<>();
+                for (int i = 0; i < pending.size(); i++) {
+                    Future<Boolean> future = completionService.take();
+                    String outputDirectory = submitted.get(future);
+
+                    if (future.get()) {
+                        finished++;
+                        System.out.printf("Finished simulation %d of %d: %s\n", finished, outputDirectories.size(), outputDirectory);
+                    } else {
+                        deferred.add(outputDirectory);
+                    }
+                }
+
+                if (!deferred.isEmpty()) {
+                    System.out.printf("Waiting for %d simulations that are claimed by other processes\n", deferred.size());
+                    Thread.sleep(waitSeconds * 1000);
+                }
+
+                pending = deferred;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e);
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * Searches the smallest fleet size that meets the targets for each variant, with the searches of several variants
+     * running in parallel. A search only runs the simulations it needs (see {@link FleetSizeSearch}).
+     */
+    private static void runFleetSizeSearches(Map<String, SortedMap<Integer, String>> variants, Map<String, SimTask> simulationTasks, int parallelSims, double targetVulnerableRejectionRate, double targetNonVulnerableRejectionRate) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelSims);
+
+        // variants with the longest simulations first, as in the grid
+        List<String> order = new ArrayList<>(variants.keySet());
+        order.sort(Comparator.comparingDouble((String variant) -> simulationTasks.get(variants.get(variant).get(variants.get(variant).lastKey())).getEstimatedCost()).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        Map<String, Future<String>> results = new LinkedHashMap<>();
+        for (String variant : order) {
+            SortedMap<Integer, String> outputDirectories = variants.get(variant);
+            int[] fleetSizes = outputDirectories.keySet().stream().mapToInt(Integer::intValue).toArray();
+
+            results.put(variant, executor.submit(() -> {
+                FleetSizeSearch search = new FleetSizeSearch(fleetSizes, outputDirectories::get,
+                        fleetSize -> simulationTasks.get(outputDirectories.get(fleetSize)).run(),
+                        targetVulnerableRejectionRate, targetNonVulnerableRejectionRate);
+                int index = search.findSmallestFeasible(fleetSizes.length / 2);
+                return index < 0 ?
+                        String.format("none up to %d (%d simulations)", fleetSizes[fleetSizes.length - 1], search.getSimulationCount()) :
+                        String.format("%d (%d simulations)", fleetSizes[index], search.getSimulationCount());
+            }));
+        }
+
+        try {
+            for (Map.Entry<String, Future<String>> result : results.entrySet()) {
+                System.out.printf("Smallest fleet size meeting the target rejection rates for %s: %s\n", result.getKey(), result.getValue().get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e);
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * Returns false if another process holds the claim on the simulation, and true once it is finished by this or
+     * another process.
+     */
+    private static boolean runClaimed(String outputDirectory, SimTask task, SweepClaims claims, AbortThresholds abortThresholds) {
+        if (claims == null) {
+            task.run();
+            return true;
+        }
+
+        if (isFinished(outputDirectory, abortThresholds)) {
+            return true;
+        }
+
+        String name = Path.of(outputDirectory).getFileName().toString();
+        if (!claims.tryClaim(name)) {
+            return false;
+        }
+
+        try {
+            // the previous holder may have finished between the check above and the claim
+            if (!isFinished(outputDirectory, abortThresholds)) {
+                task.run();
+            }
+        } finally {
+            claims.release(name);
+        }
+
+        return true;
+    }
+
+    /**
+     * A simulation is finished when it ran to the end or was aborted as infeasible under thresholds that the given abort
+     * thresholds (null if runs are not aborted) are at least as strict as. Runs aborted under stricter thresholds have to
+     * be repeated, since they might meet the given ones.
+     */
+    static boolean isFinished(String outputDirectory, AbortThresholds abortThresholds) {
+        return Files.exists(Path.of(outputDirectory, "modestats.csv")) || InfeasibilityMonitor.isInfeasible(Path.of(outputDirectory), abortThresholds);
+    }
+
     public static void main(String[] args) throws CommandLine.ConfigurationException {
         CommandLine commandLine = new CommandLine.Builder(args)
                 .requireOptions("config-path")
                 .allowOptions("parallel-sims")
+                .allowOptions("memory-per-sim")
                 .allowOptions("base-output-path")
                 .allowOptions("no-sim")
+                .allowOptions("travel-time-cache-path")
+                .allowOptions("scenario-snapshot")
+                .allowOptions("shard", "claim-timeout")
+                .allowOptions("common-random-numbers")
+                .allowOptions("abort-rejection-rate", "abort-vulnerable-rejection-rate", "abort-non-vulnerable-rejection-rate", "abort-wait-time")
+                .allowOptions("fleet-size-search", "target-rejection-rate", "target-vulnerable-rejection-rate", "target-non-vulnerable-rejection-rate")
                 .build();
 
+        // --shard i/n: this process starts with every n-th simulation and coordinates with the others through claims
+        int shardIndex = 0;
+        int shardCount = 1;
+        boolean sharded = commandLine.hasOption("shard");
+        if (sharded) {
+            String[] shard = commandLine.getOptionStrict("shard").split("/");
+            shardIndex = Integer.parseInt(shard[0]);
+            shardCount = Integer.parseInt(shard[1]);
+            if (shardIndex < 0 || shardIndex >= shardCount) {
+                throw new IllegalStateException("Invalid shard " + commandLine.getOptionStrict("shard"));
+            }
+        }
+
         Set<Integer> fleetSizes = new HashSet<>(List.of(100, 150, 200, 250, 300, 350, 400, 450, 500, 550, 600));
         Set<Boolean> useAlonsoMoraValues = new HashSet<>(List.of(false));
         Set<Double> vulnerableProbabilities = new HashSet<>(List.of(0.0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0));
@@ -48,9 +220,34 @@ public class RunBenchmark {
         Set<Double> prebookingShares = new HashSet<>(List.of(0.0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0));
         Set<Boolean> minimizePassengerDelayValues = new HashSet<>(List.of(false, true));
 
-        Map<String, String[]> simulationTasks = new HashMap<>();
+        Map<String, SimTask> simulationTasks = new HashMap<>();
 
         String baseOutputPath = commandLine.getOption("base-output-path").orElse("outputs");
+        // all simulations append their KPIs to one table for the whole sweep
+        String kpiTablePath = Paths.get(baseOutputPath, "drt_kpis.csv").toString();
+        String kpiStorePath = Paths.get(baseOutputPath, "drt_kpis").toString();
+        // all simulations use the same network, so the travel time matrix is only computed by the first one
+        String travelTimeCachePath = commandLine.getOption("travel-time-cache-path").orElse(Paths.get(baseOutputPath, "travel_time_cache").toString());
+        AbortThresholds abortThresholds = RunSimulation.getAbortThresholds(commandLine);
+
+        // "grid" runs all fleet sizes, "bisection" only the ones needed to find the smallest fleet of each variant that meets the targets
+        String fleetSizeSearch = commandLine.getOption("fleet-size-search").orElse("grid");
+        if (!fleetSizeSearch.equals("grid") && !fleetSizeSearch.equals("bisection")) {
+            throw new IllegalStateException("Unknown fleet size search: " + fleetSizeSearch);
+        }
+
+        boolean bisection = fleetSizeSearch.equals("bisection");
+        double targetRejectionRate = Double.parseDouble(commandLine.getOption("target-rejection-rate").orElse("0.05"));
+        double targetVulnerableRejectionRate = commandLine.getOption("target-vulnerable-rejection-rate").map(Double::parseDouble).orElse(targetRejectionRate);
+        double targetNonVulnerableRejectionRate = commandLine.getOption("target-non-vulnerable-rejection-rate").map(Double::parseDouble).orElse(targetRejectionRate);
+
+        if (bisection && (sharded || abortThresholds != null)) {
+            // each search decides on its next fleet size from the previous results, and aborts its runs at the targets
+            throw new IllegalStateException("The bisection search cannot be combined with --shard or --abort-* options");
+        }
+
+        // fleet sizes and output directories of each variant, i.e. of the other parameters
+        Map<String, SortedMap<Integer, String>> variants = new HashMap<>();
 
         for (List params : Sets.cartesianProduct(fleetSizes, useAlonsoMoraValues, vulnerableProbabilities, vulnerableInteractionTimes, dispatchIntervals, prebookVulnerableUsersValues, prebookingShares, minimizePassengerDelayValues)) {
             int fleetSize = (int) params.get(0);
@@ -91,7 +288,15 @@ public class RunBenchmark {
 
             Path outputEventsFile = Path.of(outputDirectory, "output_events.xml.gz");
 
-            if (Files.exists(Path.of(outputDirectory, "modestats.csv"))) {
+            if (bisection) {
+                // the fleet sizes of a variant only differ in the prefix of the directory name
+                String variant = Path.of(outputDirectory).getFileName().toString().substring(String.format("fs%s_", fleetSize).length());
+                variants.computeIfAbsent(variant, key -> new TreeMap<>()).put(fleetSize, outputDirectory);
+            }
+
+            // sharded runs keep finished simulations in the grid so that all processes slice the same grid, and the
+            // searches reuse finished simulations themselves
+            if (!sharded && !bisection && isFinished(outputDirectory, abortThresholds)) {
                 System.out.println("Skipping simulation with outputDirectory " + outputDirectory);
                 if (Files.exists(outputEventsFile)) {
                     try {
@@ -114,50 +319,90 @@ public class RunBenchmark {
                     "--prebook-vulnerable", String.valueOf(prebookingVulnerableUsers),
                     "--prebooking-probability", String.valueOf(prebookingShare),
                     "--minimize-passenger-delays", String.valueOf(minimizePassengerDelay),
-                    "--config:multiModeDrt.drt[mode=drt].dispatchInterval", String.valueOf(dispatchInterval)
+                    "--config:multiModeDrt.drt[mode=drt].dispatchInterval", String.valueOf(dispatchInterval),
+                    "--travel-time-cache-path", travelTimeCachePath,
+                    "--scenario-cache", "true",
+                    "--lean-output", "true",
+                    "--kpi-table", kpiTablePath,
+                    "--kpi-store", kpiStorePath,
+                    "--common-random-numbers", commandLine.getOption("common-random-numbers").orElse("false")
             };
 
-            simulationTasks.put(outputDirectory, simArgs);
-        }
+            if (commandLine.hasOption("scenario-snapshot")) {
+                simArgs = ObjectArrays.concat(simArgs, new String[]{"--scenario-snapshot", commandLine.getOptionStrict("scenario-snapshot")}, String.class);
+            }
 
-        int parallelSims = Integer.parseInt(commandLine.getOption("parallel-sims").orElse("1"));
+            if (bisection) {
+                simArgs = ObjectArrays.concat(simArgs, FleetSizeSearch.getAbortArgs(targetVulnerableRejectionRate, targetNonVulnerableRejectionRate), String.class);
+            }
 
-        System.out.printf("About to perform %d simulations, with %d running in parallel\n", simulationTasks.size(), parallelSims);
+            // runs that cannot meet these thresholds anymore are aborted and recorded as infeasible
+            for (String option : new String[]{"abort-rejection-rate", "abort-vulnerable-rejection-rate", "abort-non-vulnerable-rejection-rate", "abort-wait-time"}) {
+                if (commandLine.hasOption(option)) {
+                    simArgs = ObjectArrays.concat(simArgs, new String[]{"--" + option, commandLine.getOptionStrict(option)}, String.class);
+                }
+            }
 
-        boolean noSim = Boolean.parseBoolean(commandLine.getOption("no-sim").orElse("false"));
+            if (sharded || Files.exists(Path.of(outputDirectory))) {
+                // a simulation is only started under its claim (or in the only process), so any existing output is left over
+                // from a crashed process or from an abort under other thresholds
+                simArgs = ObjectArrays.concat(simArgs, new String[]{"--config:controler.overwriteFiles", "deleteDirectoryIfExists"}, String.class);
+            }
 
-        if(noSim) {
-            return;
+            double prebookedShare = prebookingVulnerableUsers ? vulnerableProbability : prebookingShare;
+            simulationTasks.put(outputDirectory, new SimTask(simArgs, estimateCost(fleetSize, vulnerableProbability, vulnerableTime, prebookedShare, minimizePassengerDelay)));
         }
 
-        ExecutorService executor = Executors.newFixedThreadPool(parallelSims);
+        int parallelSims = Integer.parseInt(commandLine.getOption("parallel-sims").orElse("1"));
 
-        List<String[]> tasks = new ArrayList<>(simulationTasks.values());
-        Collections.shuffle(tasks);
+        // simulations share the heap, so do not start more of them than fit in memory (in MB per simulation)
+        if (commandLine.hasOption("memory-per-sim")) {
+            long memoryPerSim = Long.parseLong(commandLine.getOptionStrict("memory-per-sim")) * 1024 * 1024;
+            int memoryLimitedSims = (int) Math.max(1, Runtime.getRuntime().maxMemory() / memoryPerSim);
+            if (memoryLimitedSims < parallelSims) {
+                System.out.printf("Only %d simulations fit into the maximum heap size of %d MB\n", memoryLimitedSims, Runtime.getRuntime().maxMemory() / 1024 / 1024);
+                parallelSims = memoryLimitedSims;
+            }
+        }
 
-        List<Future> futures = tasks.stream().map(SimTask::new).map(executor::submit).collect(Collectors.toList());
+        // longest simulations first, so that the sweep does not end with a few long simulations on an otherwise idle node
+        List<String> outputDirectories = new ArrayList<>(simulationTasks.keySet());
+        outputDirectories.sort(Comparator.comparingDouble((String outputDirectory) -> simulationTasks.get(outputDirectory).getEstimatedCost()).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        if (sharded) {
+            // dealing round-robin keeps the shards balanced, the other shards' simulations are taken over once this one is done
+            List<String> shardDirectories = new ArrayList<>();
+            List<String> otherDirectories = new ArrayList<>();
+            for (int i = 0; i < outputDirectories.size(); i++) {
+                (i % shardCount == shardIndex ? shardDirectories : otherDirectories).add(outputDirectories.get(i));
+            }
 
-        while(!executor.isTerminated()) {
-            for(Future future: futures) {
-                try {
-                    future.get(1, TimeUnit.MICROSECONDS);
-                } catch (InterruptedException | ExecutionException e) {
-                    executor.shutdownNow();
-                    throw new RuntimeException(e);
-                } catch (TimeoutException e) {
+            System.out.printf("Shard %d of %d starts with %d of the simulations\n", shardIndex, shardCount, shardDirectories.size());
+            shardDirectories.addAll(otherDirectories);
+            outputDirectories = shardDirectories;
+        }
 
-                }
-            }
+        if (bisection) {
+            System.out.printf("About to search the fleet sizes of %d variants, with %d simulations running in parallel\n", variants.size(), parallelSims);
+        } else {
+            System.out.printf("About to perform %d simulations, with %d running in parallel\n", simulationTasks.size(), parallelSims);
         }
 
-        for(String outputDirectory: simulationTasks.keySet()) {
-            Path outputEventsFile = Path.of(outputDirectory, "output_events.xml.gz");
-            try {
-                Files.delete(outputEventsFile);
-            } catch (IOException e) {
-                System.out.println("Couldn't remove " + outputDirectory);
-            }
+        boolean noSim = Boolean.parseBoolean(commandLine.getOption("no-sim").orElse("false"));
+
+        if(noSim) {
+            return;
         }
 
+        if (bisection) {
+            runFleetSizeSearches(variants, simulationTasks, parallelSims, targetVulnerableRejectionRate, targetNonVulnerableRejectionRate);
+            return;
+        }
+
+        long claimTimeout = Long.parseLong(commandLine.getOption("claim-timeout").orElse("600"));
+        try (SweepClaims claims = sharded ? new SweepClaims(Paths.get(baseOutputPath, "claims"), Duration.ofSeconds(claimTimeout)) : null) {
+            runSimulations(outputDirectories, simulationTasks, parallelSims, claims, Math.max(1, Math.min(60, claimTimeout / 4)), abortThresholds);
+        }
     }
 }
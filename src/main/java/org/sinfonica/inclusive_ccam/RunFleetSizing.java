@@ -1,58 +1,195 @@
 package org.sinfonica.inclusive_ccam;
 
+import com.google.common.collect.ObjectArrays;
+import org.matsim.contrib.drt.run.DrtConfigGroup;
+import org.matsim.contrib.drt.run.MultiModeDrtConfigGroup;
+import org.matsim.contrib.dvrp.run.DvrpConfigGroup;
 import org.matsim.core.config.CommandLine;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.sinfonica.inclusive_ccam.analysis.AbortThresholds;
+import org.sinfonica.inclusive_ccam.analysis.RunParameters;
+import org.sinfonica.inclusive_ccam.analysis.SweepResultsStore;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.TreeMap;
 import java.util.stream.IntStream;
 
 public class RunFleetSizing {
+    private static final String OUTPUT_PATH = "outputs_fleet_sizing";
+    private static final int[] FLEET_SIZES = IntStream.range(1,21).map(i -> i*50).toArray();
+    private static final String[] ABORT_OPTIONS = new String[]{"abort-rejection-rate", "abort-vulnerable-rejection-rate", "abort-non-vulnerable-rejection-rate", "abort-wait-time"};
+
     public static void main(String[] args) throws CommandLine.ConfigurationException {
         CommandLine commandLine = new CommandLine.Builder(args)
                 .requireOptions("config-path")
                 .allowOptions("vulnerable-probability", "vulnerable-time")
+                .allowOptions("scenario-snapshot")
+                .allowOptions("search", "target-rejection-rate", "target-vulnerable-rejection-rate", "target-non-vulnerable-rejection-rate")
+                .allowOptions(ABORT_OPTIONS)
+                .allowOptions("common-random-numbers")
                 .build();
 
         double vulnerableProbability = commandLine.hasOption("vulnerable-probability") ? Double.parseDouble(commandLine.getOptionStrict("vulnerable-probability")) : 0.5;
         int vulnerableInteractionTimes = commandLine.hasOption("vulnerable-time") ? Integer.parseInt(commandLine.getOptionStrict("vulnerable-time")) : 120;
-        int[] fleetSizes = IntStream.range(1,21).map(i -> i*50).toArray();
-        for(int fleetSize: fleetSizes) {
-            String probabilityString = String.format(String.format(Locale.US, "%.1f", vulnerableProbability));
 
-            String timeString = String.format(Locale.US, "%d", vulnerableInteractionTimes);
+        String probabilityString = String.format(String.format(Locale.US, "%.1f", vulnerableProbability));
+        String timeString = String.format(Locale.US, "%d", vulnerableInteractionTimes);
+
+        // "grid" runs all fleet sizes, "bisection" only the ones needed to find the smallest fleet that meets the targets
+        String search = commandLine.getOption("search").orElse("grid");
+
+        if (search.equals("grid")) {
+            AbortThresholds abortThresholds = RunSimulation.getAbortThresholds(commandLine);
+
+            for(int fleetSize: FLEET_SIZES) {
+                String outputDirectory = getOutputDirectory(probabilityString, timeString, fleetSize);
 
-            String outputDirectory = String.format("outputs_fleet_sizing/output_%s_%s_%d", probabilityString, timeString, fleetSize);
+                Path outputEventsFile = Path.of(outputDirectory, "output_events.xml.gz");
 
-            Path outputEventsFile = Path.of(outputDirectory, "output_events.xml.gz");
+                if(RunBenchmark.isFinished(outputDirectory, abortThresholds)) {
+                    System.out.println("Skipping simulation with outputDirectory " + outputDirectory);
+                    if(Files.exists(outputEventsFile)) {
+                        try {
+                            Files.delete(outputEventsFile);
+                        } catch (IOException e) {
+                            System.out.println("Couldn't remove " + outputDirectory);
+                        }
+                    }
+                    continue;
+                }
 
-            if(Files.exists(Path.of(outputDirectory, "modestats.csv"))) {
-                System.out.println("Skipping simulation with outputDirectory " + outputDirectory);
-                if(Files.exists(outputEventsFile)) {
-                    try {
-                        Files.delete(outputEventsFile);
-                    } catch (IOException e) {
-                        System.out.println("Couldn't remove " + outputDirectory);
+                String[] abortArgs = new String[0];
+                for (String option : ABORT_OPTIONS) {
+                    if (commandLine.hasOption(option)) {
+                        abortArgs = ObjectArrays.concat(abortArgs, new String[]{"--" + option, commandLine.getOptionStrict(option)}, String.class);
                     }
                 }
-                continue;
+
+                // existing output is left over from a crash or from an abort under other thresholds
+                runSimulation(commandLine, probabilityString, timeString, fleetSize, Files.exists(Path.of(outputDirectory)), abortArgs);
+            }
+        } else if (search.equals("bisection")) {
+            double targetRejectionRate = Double.parseDouble(commandLine.getOption("target-rejection-rate").orElse("0.05"));
+            double targetVulnerableRejectionRate = commandLine.getOption("target-vulnerable-rejection-rate").map(Double::parseDouble).orElse(targetRejectionRate);
+            double targetNonVulnerableRejectionRate = commandLine.getOption("target-non-vulnerable-rejection-rate").map(Double::parseDouble).orElse(targetRejectionRate);
+
+            String[] abortArgs = FleetSizeSearch.getAbortArgs(targetVulnerableRejectionRate, targetNonVulnerableRejectionRate);
+            FleetSizeSearch fleetSizeSearch = new FleetSizeSearch(FLEET_SIZES, fleetSize -> getOutputDirectory(probabilityString, timeString, fleetSize),
+                    fleetSize -> runSimulation(commandLine, probabilityString, timeString, fleetSize, Files.exists(Path.of(getOutputDirectory(probabilityString, timeString, fleetSize))), abortArgs),
+                    targetVulnerableRejectionRate, targetNonVulnerableRejectionRate);
+
+            // start from the result of the closest vulnerable share that was already sized with the same dispatching
+            // (the simulations of this class use the default dispatcher and no prebooking)
+            RunParameters searchParameters = new RunParameters(null, 0, Double.parseDouble(probabilityString), vulnerableInteractionTimes,
+                    "drt", getDispatchInterval(commandLine.getOptionStrict("config-path")), false, 0.0);
+            int guess = guessFromNeighbours(searchParameters, targetVulnerableRejectionRate, targetNonVulnerableRejectionRate)
+                    .orElse(FLEET_SIZES.length / 2);
+
+            int index = fleetSizeSearch.findSmallestFeasible(guess);
+            if (index < 0) {
+                System.out.printf("No fleet size up to %d meets the target rejection rates for vulnerable share %s and time %s (%d simulations)\n",
+                        FLEET_SIZES[FLEET_SIZES.length - 1], probabilityString, timeString, fleetSizeSearch.getSimulationCount());
+            } else {
+                System.out.printf("Smallest fleet size meeting the target rejection rates for vulnerable share %s and time %s: %d (%d simulations)\n",
+                        probabilityString, timeString, FLEET_SIZES[index], fleetSizeSearch.getSimulationCount());
             }
+        } else {
+            throw new IllegalStateException("Unknown search: " + search);
+        }
+    }
+
+    private static String getOutputDirectory(String probabilityString, String timeString, int fleetSize) {
+        return String.format("%s/output_%s_%s_%d", OUTPUT_PATH, probabilityString, timeString, fleetSize);
+    }
+
+    private static void runSimulation(CommandLine commandLine, String probabilityString, String timeString, int fleetSize, boolean overwrite, String[] abortArgs) throws CommandLine.ConfigurationException {
+        String[] simArgs = new String[]{
+                "--config-path", commandLine.getOptionStrict("config-path"),
+                "--vulnerable-probability", probabilityString,
+                "--vulnerable-time", timeString,
+                "--config:controler.outputDirectory", getOutputDirectory(probabilityString, timeString, fleetSize),
+                "--config:controler.lastIteration", "0",
+                "--fleet-size", String.valueOf(fleetSize),
+                "--scenario-cache", "true",
+                "--lean-output", "true",
+                "--kpi-table", OUTPUT_PATH + "/drt_kpis.csv",
+                "--kpi-store", OUTPUT_PATH + "/drt_kpis",
+                "--common-random-numbers", commandLine.getOption("common-random-numbers").orElse("false")
+        };
 
-            RunSimulation.main(new String[]{
-                    "--config-path", commandLine.getOptionStrict("config-path"),
-                    "--vulnerable-probability", probabilityString,
-                    "--vulnerable-time", timeString,
-                    "--config:controler.outputDirectory", outputDirectory,
-                    "--config:controler.lastIteration", "0",
-                    "--config:multiModeDrt.drt[mode=drt].vehiclesFile", String.format("drt_vehicles_%d.xml.gz", fleetSize)
-            });
-
-            try {
-                Files.delete(outputEventsFile);
-            } catch (IOException e) {
-                System.out.println("Couldn't remove " + outputDirectory);
+        if (commandLine.hasOption("scenario-snapshot")) {
+            simArgs = ObjectArrays.concat(simArgs, new String[]{"--scenario-snapshot", commandLine.getOptionStrict("scenario-snapshot")}, String.class);
+        }
+
+        simArgs = ObjectArrays.concat(simArgs, abortArgs, String.class);
+
+        if (overwrite) {
+            simArgs = ObjectArrays.concat(simArgs, new String[]{"--config:controler.overwriteFiles", "deleteDirectoryIfExists"}, String.class);
+        }
+
+        RunSimulation.main(simArgs);
+    }
+
+    /**
+     * Dispatch interval of the drt mode in the config, as RunSimulation records it in the sweep results store.
+     */
+    private static int getDispatchInterval(String configPath) {
+        Config config = ConfigUtils.loadConfig(configPath, new DvrpConfigGroup(), new MultiModeDrtConfigGroup());
+        MultiModeDrtConfigGroup multiModeDrtConfigGroup = (MultiModeDrtConfigGroup) config.getModules().get(MultiModeDrtConfigGroup.GROUP_NAME);
+        return multiModeDrtConfigGroup.getModalElements().stream()
+                .filter(drtConfigGroup -> drtConfigGroup.getMode().equals("drt"))
+                .findFirst()
+                .map(drtConfigGroup -> drtConfigGroup.dispatchInterval)
+                .orElse(new DrtConfigGroup().dispatchInterval);
+    }
+
+    /**
+     * Index of the smallest fleet size that met the targets for the closest other vulnerable share in the sweep results
+     * store, among the completed runs with the same vulnerable time, dispatcher, dispatch interval and prebooking as the
+     * search.
+     */
+    private static OptionalInt guessFromNeighbours(RunParameters searchParameters, double targetVulnerableRejectionRate, double targetNonVulnerableRejectionRate) {
+        double vulnerableProbability = searchParameters.vulnerableShare();
+        Path storePath = Path.of(OUTPUT_PATH, "drt_kpis");
+        if (!SweepResultsStore.exists(storePath)) {
+            return OptionalInt.empty();
+        }
+
+        SweepResultsStore.Scan scan = SweepResultsStore.scan(storePath);
+        Map<Double, Integer> smallestFeasibleFleetSizes = new TreeMap<>();
+
+        for (int row = 0; row < scan.getRowCount(); row++) {
+            double share = scan.getDouble("vulnerable_share", row);
+
+            if (scan.getString("mode", row).equals("drt") && isSameVariant(scan, row, searchParameters)
+                    && Math.abs(share - vulnerableProbability) > 1e-9
+                    && FleetSizeSearch.meetsTargets(scan.getDouble("vulnerable_rejection_rate", row), scan.getDouble("non_vulnerable_rejection_rate", row), targetVulnerableRejectionRate, targetNonVulnerableRejectionRate)) {
+                smallestFeasibleFleetSizes.merge(share, scan.getInt("fleet_size", row), Math::min);
             }
         }
+
+        return smallestFeasibleFleetSizes.entrySet().stream()
+                .min((a, b) -> Double.compare(Math.abs(a.getKey() - vulnerableProbability), Math.abs(b.getKey() - vulnerableProbability)))
+                .map(entry -> Arrays.binarySearch(FLEET_SIZES, entry.getValue()))
+                .filter(index -> index >= 0)
+                .map(OptionalInt::of)
+                .orElse(OptionalInt.empty());
+    }
+
+    private static boolean isSameVariant(SweepResultsStore.Scan scan, int row, RunParameters searchParameters) {
+        return scan.getDouble("vulnerable_time", row) == searchParameters.vulnerableTime()
+                && scan.getString("dispatcher", row).equals(searchParameters.dispatcher())
+                && scan.getInt("dispatch_interval", row) == searchParameters.dispatchInterval()
+                && scan.getBoolean("prebook_vulnerable", row) == searchParameters.prebookVulnerable()
+                && scan.getDouble("prebooking_share", row) == searchParameters.prebookingShare()
+                // aborted runs only have the rejection rates up to the abort
+                && Double.isNaN(scan.getDouble("infeasible_time", row));
     }
 }
@@ -0,0 +1,66 @@
+package org.sinfonica.inclusive_ccam;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.contrib.drt.run.MultiModeDrtConfigGroup;
+import org.matsim.contrib.dvrp.fleet.FleetReader;
+import org.matsim.contrib.dvrp.fleet.FleetSpecification;
+import org.matsim.contrib.dvrp.fleet.FleetSpecificationImpl;
+import org.matsim.contrib.dvrp.run.DvrpConfigGroup;
+import org.matsim.core.config.CommandLine;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.sinfonica.inclusive_ccam.scenario.ScenarioSnapshot;
+import org.sinfonica.inclusive_ccam.scenario.ScenarioTemplates;
+
+/**
+ * Writes the preprocessed scenario of a config, together with the DRT vehicle files of all fleet sizes, into a
+ * {@link ScenarioSnapshot} that RunSimulation, RunBenchmark and RunFleetSizing read with --scenario-snapshot.
+ */
+public class RunScenarioSnapshot {
+    public static void main(String[] args) throws CommandLine.ConfigurationException {
+        CommandLine commandLine = new CommandLine.Builder(args)
+                .requireOptions("config-path", "output-path")
+                .allowOptions("fleet-sizes")
+                .build();
+
+        // fleet sizes of RunBenchmark and RunFleetSizing
+        int[] fleetSizes = commandLine.getOption("fleet-sizes")
+                .map(value -> Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray())
+                .orElse(IntStream.range(1, 21).map(i -> i * 50).toArray());
+
+        // same preparation of the inputs as in RunSimulation
+        Config config = ConfigUtils.loadConfig(commandLine.getOptionStrict("config-path"), new DvrpConfigGroup(), new MultiModeDrtConfigGroup());
+        commandLine.applyConfiguration(config);
+        config.transit().setTransitScheduleFile(null);
+
+        MultiModeDrtConfigGroup multiModeDrtConfigGroup = (MultiModeDrtConfigGroup) config.getModules().get(MultiModeDrtConfigGroup.GROUP_NAME);
+        Set<String> drtModes = multiModeDrtConfigGroup.modes().collect(Collectors.toSet());
+
+        Scenario scenario = ScenarioTemplates.loadScenario(config, drtModes, null);
+
+        Map<String, FleetSpecification> fleets = new LinkedHashMap<>();
+        for (int fleetSize : fleetSizes) {
+            URL vehiclesUrl = ConfigGroup.getInputFileURL(config.getContext(), String.format("drt_vehicles_%d.xml.gz", fleetSize));
+
+            try {
+                FleetSpecification fleetSpecification = new FleetSpecificationImpl();
+                new FleetReader(fleetSpecification).parse(vehiclesUrl);
+                fleets.put(ScenarioTemplates.getRelativeInputPath(config, vehiclesUrl), fleetSpecification);
+            } catch (RuntimeException e) {
+                System.out.println("Couldn't read " + vehiclesUrl + ", not adding it to the snapshot");
+            }
+        }
+
+        ScenarioSnapshot.write(Path.of(commandLine.getOptionStrict("output-path")), ScenarioTemplates.getInputKey(config, drtModes), scenario, fleets);
+    }
+}
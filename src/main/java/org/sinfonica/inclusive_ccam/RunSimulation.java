@@ -1,24 +1,32 @@
 package org.sinfonica.inclusive_ccam;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import com.google.common.hash.Hashing;
 import org.matsim.alonso_mora.AlonsoMoraConfigGroup;
 import org.matsim.alonso_mora.AlonsoMoraConfigGroup.GlpkMpsAssignmentParameters;
 import org.matsim.alonso_mora.AlonsoMoraConfigGroup.MatrixEstimatorParameters;
 import org.matsim.alonso_mora.AlonsoMoraConfigGroup.SequenceGeneratorType;
 import org.matsim.alonso_mora.AlonsoMoraConfigurator;
 import org.matsim.alonso_mora.MultiModeAlonsoMoraConfigGroup;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
-import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
 import org.matsim.contrib.drt.extension.insertion.DrtInsertionModule;
+import org.matsim.contrib.drt.optimizer.insertion.CostCalculationStrategy;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.LinkBasedRelocationCalculator;
+import org.matsim.contrib.drt.optimizer.rebalancing.plusOne.QuadTreeLinkBasedRelocationCalculator;
 import org.matsim.contrib.drt.prebooking.PrebookingParams;
 import org.matsim.contrib.drt.prebooking.logic.PersonBasedPrebookingLogic;
-import org.matsim.contrib.drt.routing.DrtRoute;
-import org.matsim.contrib.drt.routing.DrtRouteFactory;
 import org.matsim.contrib.drt.run.MultiModeDrtConfigGroup;
 import org.matsim.contrib.drt.run.MultiModeDrtModule;
+import org.matsim.contrib.dvrp.fleet.FleetSpecification;
+import org.matsim.contrib.dvrp.run.AbstractDvrpModeModule;
 import org.matsim.contrib.dvrp.run.AbstractDvrpModeQSimModule;
 import org.matsim.contrib.dvrp.run.DvrpConfigGroup;
 import org.matsim.contrib.dvrp.run.DvrpModule;
@@ -29,10 +37,14 @@ import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.ReplanningConfigGroup.StrategySettings;
 import org.matsim.core.controler.Controler;
-import org.matsim.core.network.algorithms.NetworkSegmentDoubleLinks;
-import org.matsim.core.scenario.ScenarioUtils;
+import org.sinfonica.inclusive_ccam.analysis.AbortThresholds;
+import org.sinfonica.inclusive_ccam.analysis.DrtKpiModule;
+import org.sinfonica.inclusive_ccam.analysis.InfeasibleRunException;
+import org.sinfonica.inclusive_ccam.analysis.RunParameters;
+import org.sinfonica.inclusive_ccam.heterogenous_users.drt.FairInsertionCostCalculator;
 import org.sinfonica.inclusive_ccam.heterogenous_users.drt.UserSpecificStopTimeModule;
 import org.sinfonica.inclusive_ccam.heterogenous_users.drt.UserSpecificStopTimeProvider;
+import org.sinfonica.inclusive_ccam.scenario.ScenarioTemplates;
 
 public class RunSimulation {
 
@@ -40,6 +52,7 @@ public class RunSimulation {
         CommandLine commandLine = new CommandLine.Builder(args)
                 .requireOptions("config-path")
                 .allowOptions("random-seed")
+                .allowOptions("common-random-numbers")
                 .allowOptions("vulnerable-probability")
                 .allowOptions("vulnerable-time")
                 .allowOptions("fair-costs")
@@ -47,6 +60,14 @@ public class RunSimulation {
                 .allowOptions("use-alonso-mora")
                 .allowOptions("prebook-vulnerable", "prebooking-probability")
                 .allowOptions("minimize-passenger-delays")
+                .allowOptions("travel-time-cache-path")
+                .allowOptions("travel-time-estimator")
+                .allowOptions("relocation-calculator")
+                .allowOptions("scenario-cache")
+                .allowOptions("scenario-snapshot")
+                .allowOptions("lean-output")
+                .allowOptions("kpi-table", "kpi-store")
+                .allowOptions("abort-rejection-rate", "abort-vulnerable-rejection-rate", "abort-non-vulnerable-rejection-rate", "abort-wait-time")
                 .build();
 
         double prebookingProbability = commandLine.hasOption("prebooking-probability") ? Double.parseDouble(commandLine.getOptionStrict("prebooking-probability")) : -1;
@@ -60,6 +81,17 @@ public class RunSimulation {
         Integer randomSeed = commandLine.hasOption("random-seed") ? Integer.parseInt(commandLine.getOptionStrict("random-seed")) : 1234;
 
         Config config = ConfigUtils.loadConfig(configPath, new DvrpConfigGroup(), new MultiModeDrtConfigGroup());
+
+        // only write what the analysis reads: output_persons.csv.gz, modestats.csv and the drt legs and rejections
+        boolean leanOutput = commandLine.getOption("lean-output").map(Boolean::parseBoolean).orElse(false);
+        if (leanOutput) {
+            config.controller().setWriteEventsInterval(0);
+            config.controller().setWritePlansInterval(0);
+            config.controller().setWriteTripsInterval(0);
+            config.controller().setCreateGraphs(false);
+            config.linkStats().setWriteLinkStatsInterval(0);
+        }
+
         commandLine.applyConfiguration(config);
         
         StrategySettings settings = new StrategySettings();
@@ -82,32 +114,33 @@ public class RunSimulation {
         	item.addParameterSet(new PrebookingParams());
         });
 
-        Scenario scenario = ScenarioUtils.createScenario(config);
-        scenario.getPopulation().getFactory().getRouteFactories().setRouteFactory(DrtRoute.class, new DrtRouteFactory());
-        ScenarioUtils.loadScenario(scenario);
-        scenario.getPopulation().getPersons().values().stream()
-                .flatMap(p -> p.getSelectedPlan().getPlanElements().stream())
-                .filter(e -> e instanceof Leg)
-                .map(e -> (Leg) e)
-                .filter(l -> drtModes.contains(l.getMode()))
-                .forEach(l -> l.setRoute(null));
-        
-        // avoid two links connecting the same nodes
-        new NetworkSegmentDoubleLinks().run(scenario.getNetwork());
+        // batch runs keep the parsed network and population in memory and only copy them for each run
+        boolean scenarioCache = commandLine.getOption("scenario-cache").map(Boolean::parseBoolean).orElse(false);
+        // a snapshot written by RunScenarioSnapshot replaces parsing and preprocessing the XML inputs
+        Path scenarioSnapshotPath = commandLine.getOption("scenario-snapshot").map(Path::of).orElse(null);
+        Scenario scenario = scenarioCache ?
+                ScenarioTemplates.copyFromTemplate(config, drtModes, scenarioSnapshotPath) :
+                ScenarioTemplates.loadScenario(config, drtModes, scenarioSnapshotPath);
 
         double vulnerableProbability = commandLine.hasOption("vulnerable-probability") ? Double.parseDouble(commandLine.getOptionStrict("vulnerable-probability")): 0;
         double vulnerableTime = commandLine.hasOption("vulnerable-time") ? Double.parseDouble(commandLine.getOptionStrict("vulnerable-time")) : 120.0;
 
+        // with common random numbers, every person has the same variates in all variants (independent of the population
+        // order and of the other options), so that the vulnerable users of a share are a subset of those of a higher share
+        boolean commonRandomNumbers = commandLine.getOption("common-random-numbers").map(Boolean::parseBoolean).orElse(false);
+
         Random random = new Random(randomSeed);
         scenario.getPopulation().getPersons().values().forEach(p -> {
             Double drtInteractionTime = 60.0;
             boolean prebook = false;
-            if(random.nextDouble() <= vulnerableProbability) {
+            double vulnerableDraw = commonRandomNumbers ? getCommonUniform(randomSeed, p.getId(), 0) : random.nextDouble();
+            if(vulnerableDraw <= vulnerableProbability) {
                 drtInteractionTime = vulnerableTime;
                 prebook = prebookVulnerable;
             }
             if(prebookingProbability >=0) {
-                if(random.nextDouble() <= prebookingProbability) {
+                double prebookingDraw = commonRandomNumbers ? getCommonUniform(randomSeed, p.getId(), 1) : random.nextDouble();
+                if(prebookingDraw <= prebookingProbability) {
                     prebook = true;
                 }
             }
@@ -125,6 +158,20 @@ public class RunSimulation {
         controler.addOverridingModule(new DvrpModule());
         controler.addOverridingModule(new MultiModeDrtModule());
 
+        Map<String, FleetSpecification> snapshotFleets = ScenarioTemplates.getSnapshotFleets(scenario);
+        multiModeDrtConfigGroup.getModalElements().forEach(drtConfigGroup -> {
+			FleetSpecification fleetSpecification = snapshotFleets.get(ScenarioTemplates.getRelativeInputPath(config,
+					drtConfigGroup.getVehiclesFileUrl(config.getContext())));
+			if (fleetSpecification != null) {
+				controler.addOverridingModule(new AbstractDvrpModeModule(drtConfigGroup.getMode()) {
+					@Override
+					public void install() {
+						bindModal(FleetSpecification.class).toInstance(fleetSpecification);
+					}
+				});
+			}
+        });
+
         drtModes.forEach(mode -> {
             controler.addOverridingModule(new UserSpecificStopTimeModule(mode));
         });
@@ -138,11 +185,48 @@ public class RunSimulation {
 			});
 		});
 
+        boolean fairCosts = commandLine.getOption("fair-costs").map(Boolean::parseBoolean).orElse(false);
+        if (fairCosts) {
+			drtModes.forEach(mode -> {
+				controler.addOverridingQSimModule(new AbstractDvrpModeQSimModule(mode) {
+					@Override
+					protected void configureQSim() {
+						bindModal(FairInsertionCostCalculator.class).toProvider(modalProvider(
+								getter -> new FairInsertionCostCalculator(getter.getModal(UserSpecificStopTimeProvider.class)))).asEagerSingleton();
+						bindModal(CostCalculationStrategy.class).to(modalKey(FairInsertionCostCalculator.class));
+						addMobsimScopeEventHandlerBinding().to(modalKey(FairInsertionCostCalculator.class));
+					}
+				});
+			});
+        }
+
         boolean useExactTravelTimesForDrt = true;
         if (useExactTravelTimesForDrt) {
+            // "matrix" builds all travel times for 8:30 upfront, "lazy" computes time-dependent trees on demand
+            String travelTimeEstimator = commandLine.getOption("travel-time-estimator").orElse("matrix");
+            Path travelTimeCachePath = commandLine.getOption("travel-time-cache-path").map(Path::of).orElse(null);
+			drtModes.forEach(mode -> {
+				switch (travelTimeEstimator) {
+					case "matrix" -> controler.addOverridingQSimModule(new ExactDrtRoutingModule(mode, travelTimeCachePath));
+					case "lazy" -> controler.addOverridingQSimModule(new LazyDrtRoutingModule(mode));
+					default -> throw new IllegalStateException("Unknown travel-time-estimator: " + travelTimeEstimator);
+				}
+			});
+        }
+
+        // "quadtree" matches plus-one rebalancing targets to vehicles through a spatial index
+        String relocationCalculator = commandLine.getOption("relocation-calculator").orElse("fast-heuristic");
+        if (relocationCalculator.equals("quadtree")) {
 			drtModes.forEach(mode -> {
-				controler.addOverridingQSimModule(new ExactDrtRoutingModule(mode));
+				controler.addOverridingQSimModule(new AbstractDvrpModeQSimModule(mode) {
+					@Override
+					protected void configureQSim() {
+						bindModal(LinkBasedRelocationCalculator.class).toInstance(new QuadTreeLinkBasedRelocationCalculator());
+					}
+				});
 			});
+        } else if (!relocationCalculator.equals("fast-heuristic")) {
+            throw new IllegalStateException("Unknown relocation-calculator: " + relocationCalculator);
         }
 
         boolean useAlonsoMora = commandLine.getOption("use-alonso-mora").map(Boolean::parseBoolean).orElse(false);
@@ -195,9 +279,68 @@ public class RunSimulation {
 			AlonsoMoraConfigurator.configure(controler, amConfig.mode);
 		}
 
+        // KPIs by user class are written into the output directory and optionally appended to a sweep-level table
+        Path kpiTablePath = commandLine.getOption("kpi-table").map(Path::of).orElse(null);
+        Path kpiStorePath = commandLine.getOption("kpi-store").map(Path::of).orElse(null);
+        String dispatcher = useAlonsoMora ? "am" : minimizePassengerDelays ? "drt2" : "drt";
+
+        // runs are aborted as soon as they cannot meet one of these thresholds anymore
+        AbortThresholds abortThresholds = getAbortThresholds(commandLine);
+
+        multiModeDrtConfigGroup.getModalElements().forEach(drtConfigGroup -> {
+            RunParameters runParameters = new RunParameters(config.controller().getOutputDirectory(), fleetSize, vulnerableProbability, vulnerableTime,
+                    dispatcher, drtConfigGroup.dispatchInterval, prebookVulnerable, Math.max(0.0, prebookingProbability));
+            controler.addOverridingModule(new DrtKpiModule(drtConfigGroup.getMode(), runParameters, kpiTablePath, kpiStorePath, abortThresholds));
+        });
+
         multiModeDrtConfigGroup.getModalElements().forEach(drtConfigGroup -> PersonBasedPrebookingLogic.install(controler, drtConfigGroup, 4*3600));
 
         controler.configureQSimComponents( DvrpQSimComponents.activateAllModes((MultiModal<?>) config.getModules().get(MultiModeDrtConfigGroup.GROUP_NAME)));
-        controler.run();
+
+        try {
+            controler.run();
+        } catch (RuntimeException e) {
+            InfeasibleRunException infeasible = findInfeasibleRunException(e);
+            if (infeasible == null) {
+                throw e;
+            }
+            System.out.println("Aborted infeasible simulation with outputDirectory " + config.controller().getOutputDirectory() + ": " + infeasible.getMessage());
+        }
+    }
+
+    /**
+     * Uniform variate in [0, 1) that only depends on the seed, the person and the stream (SplitMix64 finalizer). The
+     * person id enters through a 64-bit hash, so that persons in large populations do not share their draws.
+     */
+    static double getCommonUniform(long seed, Id<Person> personId, int stream) {
+        long personHash = Hashing.murmur3_128().hashString(personId.toString(), StandardCharsets.UTF_8).asLong();
+        long z = seed * 0x9E3779B97F4A7C15L + personHash * 0xC2B2AE3D27D4EB4FL + stream;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Thresholds of the --abort-* options, or null if none is given. Sweeps use the same options.
+     */
+    static AbortThresholds getAbortThresholds(CommandLine commandLine) {
+        boolean abortInfeasible = commandLine.hasOption("abort-rejection-rate") || commandLine.hasOption("abort-vulnerable-rejection-rate")
+                || commandLine.hasOption("abort-non-vulnerable-rejection-rate") || commandLine.hasOption("abort-wait-time");
+        return abortInfeasible ? new AbortThresholds(
+                commandLine.getOption("abort-rejection-rate").map(Double::parseDouble).orElse(Double.NaN),
+                commandLine.getOption("abort-vulnerable-rejection-rate").map(Double::parseDouble).orElse(Double.NaN),
+                commandLine.getOption("abort-non-vulnerable-rejection-rate").map(Double::parseDouble).orElse(Double.NaN),
+                commandLine.getOption("abort-wait-time").map(Double::parseDouble).orElse(Double.NaN)) : null;
+    }
+
+    private static InfeasibleRunException findInfeasibleRunException(Throwable throwable) {
+        // the controler wraps exceptions from the mobsim
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InfeasibleRunException infeasible) {
+                return infeasible;
+            }
+        }
+        return null;
     }
 }
@@ -0,0 +1,206 @@
+package org.sinfonica.inclusive_ccam;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Claims on the simulations of a sweep that is shared by several processes, possibly on several machines, through a
+ * common output directory. A claim is a lock file "name.claim.n" of generation n that is created atomically, and the
+ * highest generation of a simulation owns it. While a process works on a simulation, it regularly touches its claim
+ * file. Claims that have not been touched for longer than the timeout belong to a crashed process and are taken over
+ * by creating the next generation, which only one of the processes that find the stale claim manages to do.
+ *
+ * <p>
+ * Staleness is judged by file modification times, so the clocks of the machines must not differ by more than a
+ * fraction of the timeout.
+ */
+class SweepClaims implements AutoCloseable {
+    private static final String CLAIM_SUFFIX = ".claim.";
+
+    private final Path claimsPath;
+    private final Duration timeout;
+    private final String owner;
+
+    // claim file of each simulation held by this process
+    private final Map<String, Path> heldClaims = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    SweepClaims(Path claimsPath, Duration timeout) {
+        this.claimsPath = claimsPath;
+        this.timeout = timeout;
+        // the process name (pid@host) may be reused after a restart, so each instance gets its own suffix
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+
+        try {
+            Files.createDirectories(claimsPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sweep-claims-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long heartbeatInterval = Math.max(1, Math.min(60, timeout.toSeconds() / 4));
+        heartbeat.scheduleAtFixedRate(this::touchHeldClaims, heartbeatInterval, heartbeatInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns true if this process now holds the claim on the simulation, either because nobody held it or because
+     * the previous holder stopped sending heartbeats.
+     */
+    boolean tryClaim(String name) {
+        try {
+            long generation = getHighestGeneration(name);
+
+            if (generation < 0) {
+                return createClaim(name, 0);
+            }
+
+            if (!isStale(getClaim(name, generation))) {
+                return false;
+            }
+
+            // creating the next generation is the takeover, so it fails for all but one of the processes that
+            // found the same generation stale
+            if (!createClaim(name, generation + 1)) {
+                return false;
+            }
+
+            System.out.println("Recovered stale claim on " + name);
+            deleteLowerGenerations(name, generation + 1);
+            return true;
+        } catch (NoSuchFileException e) {
+            // released in the meantime, try again in the next round
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Releases the claim on the simulation. Only the claim file of this process is deleted, so a higher generation of
+     * another process that has taken over the simulation in the meantime stays in place.
+     */
+    void release(String name) {
+        Path claim = heldClaims.remove(name);
+        if (claim == null) {
+            return;
+        }
+
+        try {
+            if (getHighestGeneration(name) > getGeneration(name, claim)) {
+                System.out.println("Claim on " + name + " was taken over by another process");
+            }
+
+            Files.deleteIfExists(claim);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path getClaim(String name, long generation) {
+        return claimsPath.resolve(name + CLAIM_SUFFIX + generation);
+    }
+
+    /**
+     * Returns the generation of a claim file of the simulation, or -1 if the file name is not one of its claims.
+     */
+    private static long getGeneration(String name, Path claim) {
+        String fileName = claim.getFileName().toString();
+        String prefix = name + CLAIM_SUFFIX;
+
+        if (!fileName.startsWith(prefix)) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(fileName.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the highest generation of the claims on the simulation, or -1 if it is not claimed.
+     */
+    private long getHighestGeneration(String name) throws IOException {
+        long highest = -1;
+
+        try (DirectoryStream<Path> claims = Files.newDirectoryStream(claimsPath, path -> getGeneration(name, path) >= 0)) {
+            for (Path claim : claims) {
+                highest = Math.max(highest, getGeneration(name, claim));
+            }
+        }
+
+        return highest;
+    }
+
+    /**
+     * The stale generations do not own the simulation anymore, they are only deleted to keep the directory small.
+     */
+    private void deleteLowerGenerations(String name, long generation) throws IOException {
+        try (DirectoryStream<Path> claims = Files.newDirectoryStream(claimsPath, path -> {
+            long claimGeneration = getGeneration(name, path);
+            return claimGeneration >= 0 && claimGeneration < generation;
+        })) {
+            for (Path claim : claims) {
+                Files.deleteIfExists(claim);
+            }
+        }
+    }
+
+    private boolean isStale(Path claim) throws IOException {
+        return !Files.getLastModifiedTime(claim).toInstant().isAfter(Instant.now().minus(timeout));
+    }
+
+    private boolean createClaim(String name, long generation) {
+        Path claim = getClaim(name, generation);
+
+        try {
+            Files.writeString(claim, owner, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            heldClaims.put(name, claim);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void touchHeldClaims() {
+        FileTime now = FileTime.from(Instant.now());
+
+        for (Path claim : heldClaims.values()) {
+            try {
+                Files.setLastModifiedTime(claim, now);
+            } catch (IOException e) {
+                System.out.println("Couldn't update claim " + claim);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+}
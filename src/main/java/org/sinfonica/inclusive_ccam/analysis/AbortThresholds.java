@@ -0,0 +1,26 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+/**
+ * Thresholds on the final KPIs of a DRT mode above which the {@link InfeasibilityMonitor} aborts the run. NaN disables
+ * a threshold.
+ *
+ * @param waitTime mean wait time of all users in seconds
+ */
+public record AbortThresholds(double rejectionRate, double vulnerableRejectionRate,
+		double nonVulnerableRejectionRate, double waitTime) {
+	/**
+	 * True if every threshold that is enabled in the other thresholds is enabled here with the same or a lower value,
+	 * so that a run that cannot meet the other thresholds cannot meet these either.
+	 */
+	public boolean isAtLeastAsStrictAs(AbortThresholds other) {
+		return isAtLeastAsStrict(rejectionRate, other.rejectionRate)
+				&& isAtLeastAsStrict(vulnerableRejectionRate, other.vulnerableRejectionRate)
+				&& isAtLeastAsStrict(nonVulnerableRejectionRate, other.nonVulnerableRejectionRate)
+				&& isAtLeastAsStrict(waitTime, other.waitTime);
+	}
+
+	private static boolean isAtLeastAsStrict(double threshold, double otherThreshold) {
+		// a disabled threshold (NaN) is looser than any enabled one
+		return Double.isNaN(otherThreshold) || threshold <= otherThreshold;
+	}
+}
@@ -0,0 +1,296 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.drt.passenger.events.DrtRequestSubmittedEvent;
+import org.matsim.contrib.drt.passenger.events.DrtRequestSubmittedEventHandler;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.contrib.dvrp.passenger.PassengerDroppedOffEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerDroppedOffEventHandler;
+import org.matsim.contrib.dvrp.passenger.PassengerPickedUpEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerPickedUpEventHandler;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEventHandler;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Computes the KPIs of Analysis.ipynb (rejection rates, wait times and detour factors, split by vulnerable and other
+ * users) from the events of one DRT mode while the simulation runs. After the last iteration, they are written to
+ * drt_kpis_[mode].csv in the output directory and appended to the sweep results table and store, if given.
+ *
+ * <p>
+ * As in drt_legs_[mode].csv, the wait time is the time from departure to pickup and the travelled distance is the sum
+ * of the lengths of the links that the vehicle enters while the passenger is on board.
+ */
+public class DrtKpiCollector implements PersonDepartureEventHandler, DrtRequestSubmittedEventHandler,
+		PassengerRequestRejectedEventHandler, PassengerPickedUpEventHandler, PassengerDroppedOffEventHandler,
+		LinkEnterEventHandler, IterationEndsListener {
+	static final String INTERACTION_TIME_ATTRIBUTE = "drtInteractionTime";
+	static final double DEFAULT_INTERACTION_TIME = 60.0;
+
+	private final String mode;
+	private final Population population;
+	private final Network network;
+	private final OutputDirectoryHierarchy outputDirectoryHierarchy;
+	private final RunParameters runParameters;
+
+	@Nullable
+	private final Path sweepResultsPath;
+
+	@Nullable
+	private final Path sweepResultsStorePath;
+
+	private final Map<Id<Person>, Double> departureTimes = new HashMap<>();
+	private final Map<Id<Request>, Double> directDistances = new HashMap<>();
+	private final Map<Id<Person>, Ride> rides = new HashMap<>();
+	private final Map<Id<Vehicle>, List<Ride>> vehicleRides = new HashMap<>();
+
+	private Accumulator overall = new Accumulator();
+	private Accumulator vulnerable = new Accumulator();
+	private Accumulator nonVulnerable = new Accumulator();
+
+	private double infeasibleTime = Double.NaN;
+
+	public DrtKpiCollector(String mode, Population population, Network network,
+			OutputDirectoryHierarchy outputDirectoryHierarchy, RunParameters runParameters,
+			@Nullable Path sweepResultsPath, @Nullable Path sweepResultsStorePath) {
+		this.mode = mode;
+		this.population = population;
+		this.network = network;
+		this.outputDirectoryHierarchy = outputDirectoryHierarchy;
+		this.runParameters = runParameters;
+		this.sweepResultsPath = sweepResultsPath;
+		this.sweepResultsStorePath = sweepResultsStorePath;
+	}
+
+	@Override
+	public void handleEvent(PersonDepartureEvent event) {
+		if (event.getLegMode().equals(mode)) {
+			departureTimes.put(event.getPersonId(), event.getTime());
+		}
+	}
+
+	@Override
+	public void handleEvent(DrtRequestSubmittedEvent event) {
+		if (event.getMode().equals(mode)) {
+			directDistances.put(event.getRequestId(), event.getUnsharedRideDistance());
+		}
+	}
+
+	@Override
+	public void handleEvent(PassengerRequestRejectedEvent event) {
+		if (event.getMode().equals(mode)) {
+			directDistances.remove(event.getRequestId());
+
+			for (Id<Person> personId : event.getPersonIds()) {
+				departureTimes.remove(personId);
+				overall.rejections++;
+				getAccumulator(personId).rejections++;
+			}
+		}
+	}
+
+	@Override
+	public void handleEvent(PassengerPickedUpEvent event) {
+		if (event.getMode().equals(mode)) {
+			Double departureTime = departureTimes.remove(event.getPersonId());
+			double waitTime = departureTime == null ? Double.NaN : event.getTime() - departureTime;
+			double directDistance = directDistances.getOrDefault(event.getRequestId(), Double.NaN);
+
+			Id<Vehicle> vehicleId = Id.create(event.getVehicleId(), Vehicle.class);
+			Ride ride = new Ride(vehicleId, waitTime, directDistance);
+			rides.put(event.getPersonId(), ride);
+			vehicleRides.computeIfAbsent(vehicleId, id -> new ArrayList<>()).add(ride);
+		}
+	}
+
+	@Override
+	public void handleEvent(LinkEnterEvent event) {
+		List<Ride> onBoard = vehicleRides.get(event.getVehicleId());
+
+		if (onBoard != null && !onBoard.isEmpty()) {
+			double length = network.getLinks().get(event.getLinkId()).getLength();
+
+			for (Ride ride : onBoard) {
+				ride.distance += length;
+			}
+		}
+	}
+
+	@Override
+	public void handleEvent(PassengerDroppedOffEvent event) {
+		if (event.getMode().equals(mode)) {
+			Ride ride = rides.remove(event.getPersonId());
+
+			if (ride != null) {
+				vehicleRides.get(ride.vehicleId).remove(ride);
+				directDistances.remove(event.getRequestId());
+
+				overall.addLeg(ride);
+				getAccumulator(event.getPersonId()).addLeg(ride);
+			}
+		}
+	}
+
+	private Accumulator getAccumulator(Id<Person> personId) {
+		Person person = population.getPersons().get(personId);
+		return person != null && isVulnerable(person) ? vulnerable : nonVulnerable;
+	}
+
+	static boolean isVulnerable(Person person) {
+		Object interactionTime = person.getAttributes().getAttribute(INTERACTION_TIME_ATTRIBUTE);
+		return interactionTime != null && ((Number)interactionTime).doubleValue() > DEFAULT_INTERACTION_TIME;
+	}
+
+	public DrtKpis getKpis() {
+		return new DrtKpis(overall.build(), vulnerable.build(), nonVulnerable.build(), infeasibleTime);
+	}
+
+	/**
+	 * Lower bounds on the final rejection rates and mean wait times of the current iteration, given upper bounds on
+	 * the number of requests of each user class.
+	 */
+	DrtKpis getLowerBounds(int requests, int vulnerableRequests, int nonVulnerableRequests) {
+		return new DrtKpis(overall.buildLowerBounds(requests), vulnerable.buildLowerBounds(vulnerableRequests),
+				nonVulnerable.buildLowerBounds(nonVulnerableRequests), infeasibleTime);
+	}
+
+	/**
+	 * Records the KPIs so far as the results of an aborted run.
+	 */
+	void abort(double time) {
+		infeasibleTime = time;
+		writeResults(getKpis());
+	}
+
+	@Override
+	public void reset(int iteration) {
+		departureTimes.clear();
+		directDistances.clear();
+		rides.clear();
+		vehicleRides.clear();
+
+		overall = new Accumulator();
+		vulnerable = new Accumulator();
+		nonVulnerable = new Accumulator();
+
+		infeasibleTime = Double.NaN;
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		if (!event.isLastIteration()) {
+			return;
+		}
+
+		writeResults(getKpis());
+	}
+
+	private void writeResults(DrtKpis kpis) {
+		writeRunKpis(kpis);
+
+		if (sweepResultsPath != null) {
+			SweepResultsTable.append(sweepResultsPath, runParameters, mode, kpis);
+		}
+
+		if (sweepResultsStorePath != null) {
+			SweepResultsStore.append(sweepResultsStorePath, runParameters, mode, kpis);
+		}
+	}
+
+	private void writeRunKpis(DrtKpis kpis) {
+		String path = outputDirectoryHierarchy.getOutputFilename("drt_kpis_" + mode + ".csv");
+
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(path)) {
+			writer.write("user_class;requests;rejections;rejection_rate;wait_time;detour_factor;infeasible_time\n");
+			writeRunKpis(writer, "overall", kpis.overall(), kpis.infeasibleTime());
+			writeRunKpis(writer, "vulnerable", kpis.vulnerable(), kpis.infeasibleTime());
+			writeRunKpis(writer, "non_vulnerable", kpis.nonVulnerable(), kpis.infeasibleTime());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeRunKpis(BufferedWriter writer, String userClass, UserClassKpis kpis,
+			double infeasibleTime) throws IOException {
+		writer.write(String.join(";", userClass, String.valueOf(kpis.requests()), String.valueOf(kpis.rejections()),
+				String.valueOf(kpis.rejectionRate()), String.valueOf(kpis.waitTime()),
+				String.valueOf(kpis.detourFactor()), String.valueOf(infeasibleTime)) + "\n");
+	}
+
+	private static final class Ride {
+		private final Id<Vehicle> vehicleId;
+		private final double waitTime;
+		private final double directDistance;
+		private double distance = 0.0;
+
+		private Ride(Id<Vehicle> vehicleId, double waitTime, double directDistance) {
+			this.vehicleId = vehicleId;
+			this.waitTime = waitTime;
+			this.directDistance = directDistance;
+		}
+	}
+
+	private static final class Accumulator {
+		private int legs = 0;
+		private int rejections = 0;
+
+		private int waitTimeCount = 0;
+		private double waitTimeSum = 0.0;
+
+		private int detourFactorCount = 0;
+		private double detourFactorSum = 0.0;
+
+		private void addLeg(Ride ride) {
+			legs++;
+
+			if (!Double.isNaN(ride.waitTime)) {
+				waitTimeCount++;
+				waitTimeSum += ride.waitTime;
+			}
+
+			if (ride.directDistance > 0.0) {
+				detourFactorCount++;
+				detourFactorSum += ride.distance / ride.directDistance;
+			}
+		}
+
+		private UserClassKpis build() {
+			int requests = legs + rejections;
+			return new UserClassKpis(requests, rejections, //
+					requests > 0 ? (double)rejections / requests : Double.NaN, //
+					waitTimeCount > 0 ? waitTimeSum / waitTimeCount : Double.NaN, //
+					detourFactorCount > 0 ? detourFactorSum / detourFactorCount : Double.NaN);
+		}
+
+		// rejections only grow and at most the requests that are not rejected yet add wait times
+		private UserClassKpis buildLowerBounds(int maximumRequests) {
+			int maximumLegs = maximumRequests - rejections;
+			return new UserClassKpis(maximumRequests, rejections, //
+					maximumRequests > 0 ? (double)rejections / maximumRequests : Double.NaN, //
+					maximumLegs > 0 ? waitTimeSum / maximumLegs : Double.NaN, //
+					Double.NaN);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import java.nio.file.Path;
+
+import javax.annotation.Nullable;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.contrib.dvrp.run.AbstractDvrpModeModule;
+import org.matsim.contrib.dvrp.run.AbstractDvrpModeQSimModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+
+public class DrtKpiModule extends AbstractDvrpModeModule {
+	private final RunParameters runParameters;
+
+	@Nullable
+	private final Path sweepResultsPath;
+
+	@Nullable
+	private final Path sweepResultsStorePath;
+
+	@Nullable
+	private final AbortThresholds abortThresholds;
+
+	/**
+	 * @param sweepResultsPath      sweep results table (CSV) to which the KPIs of this run are appended, or null
+	 * @param sweepResultsStorePath directory of the columnar {@link SweepResultsStore} to which the KPIs of this run are
+	 *                              appended, or null
+	 * @param abortThresholds       thresholds for aborting the run once they cannot be met anymore, or null to always
+	 *                              run to the end
+	 */
+	public DrtKpiModule(String mode, RunParameters runParameters, @Nullable Path sweepResultsPath,
+			@Nullable Path sweepResultsStorePath, @Nullable AbortThresholds abortThresholds) {
+		super(mode);
+		this.runParameters = runParameters;
+		this.sweepResultsPath = sweepResultsPath;
+		this.sweepResultsStorePath = sweepResultsStorePath;
+		this.abortThresholds = abortThresholds;
+	}
+
+	@Override
+	public void install() {
+		bindModal(DrtKpiCollector.class).toProvider(modalProvider(
+				getter -> new DrtKpiCollector(getMode(), getter.get(Population.class), getter.get(Network.class),
+						getter.get(OutputDirectoryHierarchy.class), runParameters, sweepResultsPath,
+						sweepResultsStorePath)))
+				.asEagerSingleton();
+		addEventHandlerBinding().to(modalKey(DrtKpiCollector.class));
+		addControlerListenerBinding().to(modalKey(DrtKpiCollector.class));
+
+		if (abortThresholds != null) {
+			installQSimModule(new AbstractDvrpModeQSimModule(getMode()) {
+				@Override
+				protected void configureQSim() {
+					bindModal(InfeasibilityMonitor.class).toProvider(modalProvider(
+							getter -> new InfeasibilityMonitor(getMode(), getter.get(Population.class),
+									getter.getModal(DrtKpiCollector.class),
+									getter.get(OutputDirectoryHierarchy.class), abortThresholds)))
+							.asEagerSingleton();
+					addModalQSimComponentBinding().to(modalKey(InfeasibilityMonitor.class));
+				}
+			});
+		}
+	}
+}
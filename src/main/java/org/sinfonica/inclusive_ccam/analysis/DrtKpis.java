@@ -0,0 +1,11 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+/**
+ * KPIs of one DRT mode, overall and split into vulnerable users (drtInteractionTime above 60 seconds) and all others.
+ *
+ * @param infeasibleTime simulation time at which the run was aborted by the {@link InfeasibilityMonitor}, or NaN if it
+ *                       ran to the end. The KPIs of an aborted run only cover the requests up to that time.
+ */
+public record DrtKpis(UserClassKpis overall, UserClassKpis vulnerable, UserClassKpis nonVulnerable,
+		double infeasibleTime) {
+}
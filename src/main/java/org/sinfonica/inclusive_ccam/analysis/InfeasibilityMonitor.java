@@ -0,0 +1,198 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeSimStepListener;
+import org.matsim.core.mobsim.framework.listeners.MobsimInitializedListener;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.utils.io.IOUtils;
+
+/**
+ * Aborts the QSim as soon as the KPIs of a DRT mode can no longer meet the {@link AbortThresholds}.
+ *
+ * <p>
+ * The checks only use lower bounds that hold whatever happens during the rest of the simulation: the number of DRT
+ * legs in the selected plans bounds the number of requests from above, so rejections so far divided by the planned
+ * requests bound the final rejection rate from below, and the wait times so far divided by the planned requests that
+ * are not rejected yet bound the final mean wait time from below. A run that is aborted could therefore not have met
+ * the thresholds by running to the end.
+ *
+ * <p>
+ * Before aborting, the partial KPIs are written with the time of the abort, and infeasible.txt is written into the
+ * output directory with the thresholds of the run, so that sweeps can tell aborted runs apart from crashed ones and
+ * only skip aborted runs whose thresholds were at most as strict as their own.
+ */
+public class InfeasibilityMonitor implements MobsimInitializedListener, MobsimBeforeSimStepListener {
+	private static final Logger logger = LogManager.getLogger(InfeasibilityMonitor.class);
+
+	public static final String INFEASIBLE_FILE = "infeasible.txt";
+
+	private static final String[] THRESHOLD_COLUMNS = { "rejection_rate", "vulnerable_rejection_rate",
+			"non_vulnerable_rejection_rate", "wait_time" };
+
+	// the bounds change slowly, there is no need to check them in every time step
+	private static final double CHECK_INTERVAL = 60.0;
+
+	private final String mode;
+	private final Population population;
+	private final DrtKpiCollector collector;
+	private final OutputDirectoryHierarchy outputDirectoryHierarchy;
+	private final AbortThresholds thresholds;
+
+	private int plannedRequests;
+	private int plannedVulnerableRequests;
+	private int plannedNonVulnerableRequests;
+
+	private double nextCheckTime;
+
+	public InfeasibilityMonitor(String mode, Population population, DrtKpiCollector collector,
+			OutputDirectoryHierarchy outputDirectoryHierarchy, AbortThresholds thresholds) {
+		this.mode = mode;
+		this.population = population;
+		this.collector = collector;
+		this.outputDirectoryHierarchy = outputDirectoryHierarchy;
+		this.thresholds = thresholds;
+	}
+
+	public static boolean isInfeasible(Path outputDirectory) {
+		return Files.exists(outputDirectory.resolve(INFEASIBLE_FILE));
+	}
+
+	/**
+	 * Returns true if the run was aborted under thresholds that the given thresholds are at least as strict as, so that
+	 * it cannot meet the given thresholds either. Runs aborted without recorded thresholds are not known to be
+	 * infeasible.
+	 */
+	public static boolean isInfeasible(Path outputDirectory, @Nullable AbortThresholds thresholds) {
+		if (thresholds == null || !isInfeasible(outputDirectory)) {
+			return false;
+		}
+
+		AbortThresholds abortThresholds = readThresholds(outputDirectory);
+		return abortThresholds != null && thresholds.isAtLeastAsStrictAs(abortThresholds);
+	}
+
+	@Nullable
+	private static AbortThresholds readThresholds(Path outputDirectory) {
+		try {
+			List<String> lines = Files.readAllLines(outputDirectory.resolve(INFEASIBLE_FILE));
+			if (lines.size() < 2) {
+				return null;
+			}
+
+			List<String> header = List.of(lines.get(0).split(";"));
+			String[] values = lines.get(1).split(";");
+			int[] indices = new int[THRESHOLD_COLUMNS.length];
+
+			for (int i = 0; i < THRESHOLD_COLUMNS.length; i++) {
+				indices[i] = header.indexOf(THRESHOLD_COLUMNS[i]);
+				if (indices[i] < 0 || indices[i] >= values.length) {
+					return null;
+				}
+			}
+
+			return new AbortThresholds(Double.parseDouble(values[indices[0]]), Double.parseDouble(values[indices[1]]),
+					Double.parseDouble(values[indices[2]]), Double.parseDouble(values[indices[3]]));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void notifyMobsimInitialized(MobsimInitializedEvent event) {
+		plannedRequests = 0;
+		plannedVulnerableRequests = 0;
+		plannedNonVulnerableRequests = 0;
+		nextCheckTime = 0.0;
+
+		for (Person person : population.getPersons().values()) {
+			int requests = 0;
+
+			for (Leg leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+				if (leg.getMode().equals(mode)) {
+					requests++;
+				}
+			}
+
+			plannedRequests += requests;
+
+			if (DrtKpiCollector.isVulnerable(person)) {
+				plannedVulnerableRequests += requests;
+			} else {
+				plannedNonVulnerableRequests += requests;
+			}
+		}
+	}
+
+	@Override
+	public void notifyMobsimBeforeSimStep(@SuppressWarnings("rawtypes") MobsimBeforeSimStepEvent event) {
+		double time = event.getSimulationTime();
+
+		if (time < nextCheckTime) {
+			return;
+		}
+
+		nextCheckTime = time + CHECK_INTERVAL;
+
+		String violation = findViolation(collector.getLowerBounds(plannedRequests, plannedVulnerableRequests,
+				plannedNonVulnerableRequests));
+
+		if (violation != null) {
+			logger.warn("Aborting the simulation at time {} because the {} mode cannot meet the thresholds: {}", time,
+					mode, violation);
+
+			collector.abort(time);
+			writeInfeasible(time, violation);
+
+			throw new InfeasibleRunException(mode, time, violation);
+		}
+	}
+
+	@Nullable
+	private String findViolation(DrtKpis bounds) {
+		// comparisons with NaN are false, so disabled thresholds and empty user classes never abort
+		if (bounds.overall().rejectionRate() > thresholds.rejectionRate()) {
+			return "rejection rate of at least " + bounds.overall().rejectionRate();
+		}
+
+		if (bounds.vulnerable().rejectionRate() > thresholds.vulnerableRejectionRate()) {
+			return "vulnerable rejection rate of at least " + bounds.vulnerable().rejectionRate();
+		}
+
+		if (bounds.nonVulnerable().rejectionRate() > thresholds.nonVulnerableRejectionRate()) {
+			return "non vulnerable rejection rate of at least " + bounds.nonVulnerable().rejectionRate();
+		}
+
+		if (bounds.overall().waitTime() > thresholds.waitTime()) {
+			return "wait time of at least " + bounds.overall().waitTime();
+		}
+
+		return null;
+	}
+
+	private void writeInfeasible(double time, String violation) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(outputDirectoryHierarchy.getOutputFilename(INFEASIBLE_FILE))) {
+			writer.write("mode;time;reason;" + String.join(";", THRESHOLD_COLUMNS) + "\n");
+			writer.write(String.join(";", mode, String.valueOf(time), violation,
+					String.valueOf(thresholds.rejectionRate()), String.valueOf(thresholds.vulnerableRejectionRate()),
+					String.valueOf(thresholds.nonVulnerableRejectionRate()), String.valueOf(thresholds.waitTime())) + "\n");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
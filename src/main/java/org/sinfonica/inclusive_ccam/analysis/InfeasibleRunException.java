@@ -0,0 +1,23 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+/**
+ * Thrown out of the QSim by the {@link InfeasibilityMonitor} when a run can no longer meet its thresholds.
+ */
+public class InfeasibleRunException extends RuntimeException {
+	private final String mode;
+	private final double time;
+
+	public InfeasibleRunException(String mode, double time, String reason) {
+		super("Run is infeasible for mode " + mode + " at time " + time + ": " + reason);
+		this.mode = mode;
+		this.time = time;
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public double getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,11 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+/**
+ * Parameters of one simulation of a sweep, as they are recorded next to its KPIs.
+ *
+ * @param run          output directory of the simulation
+ * @param dispatcher   "drt", "drt2" (minimizing passenger delays) or "am" (Alonso-Mora)
+ */
+public record RunParameters(String run, int fleetSize, double vulnerableShare, double vulnerableTime,
+		String dispatcher, int dispatchInterval, boolean prebookVulnerable, double prebookingShare) {
+}
@@ -0,0 +1,382 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Columnar store of the sweep results: one record per simulation and DRT mode with the run parameters and the KPIs.
+ * Every column is a file of fixed-width little-endian values. Strings (run, mode, dispatcher) are stored as codes into
+ * a shared dictionary. The header holds the schema, a random id of the store and the number of committed records and
+ * dictionary entries.
+ *
+ * <p>
+ * Simulations append concurrently, within the JVM and across processes that share the directory: appends hold a lock
+ * on the header, and data beyond the committed counts (from an interrupted append) is truncated before writing. Reads
+ * map the committed part of the columns, so queries scan a column without parsing anything.
+ */
+public final class SweepResultsStore {
+	private static final int MAGIC = 0x53575052; // "SWPR"
+	private static final int VERSION = 3;
+
+	private static final String HEADER_FILE = "header.bin";
+	private static final String DICTIONARY_FILE = "dictionary.bin";
+
+	public enum ColumnType {
+		INT(4), DOUBLE(8), BOOLEAN(1), STRING(4);
+
+		private final int width;
+
+		ColumnType(int width) {
+			this.width = width;
+		}
+	}
+
+	public record Column(String name, ColumnType type) {
+	}
+
+	public static final List<Column> COLUMNS;
+
+	static {
+		List<Column> columns = new ArrayList<>(List.of( //
+				new Column("run", ColumnType.STRING), //
+				new Column("mode", ColumnType.STRING), //
+				new Column("fleet_size", ColumnType.INT), //
+				new Column("vulnerable_share", ColumnType.DOUBLE), //
+				new Column("vulnerable_time", ColumnType.DOUBLE), //
+				new Column("dispatcher", ColumnType.STRING), //
+				new Column("dispatch_interval", ColumnType.INT), //
+				new Column("prebook_vulnerable", ColumnType.BOOLEAN), //
+				new Column("prebooking_share", ColumnType.DOUBLE)));
+
+		for (String userClass : List.of("", "vulnerable_", "non_vulnerable_")) {
+			columns.add(new Column(userClass + "requests", ColumnType.INT));
+			columns.add(new Column(userClass + "rejections", ColumnType.INT));
+			columns.add(new Column(userClass + "rejection_rate", ColumnType.DOUBLE));
+			columns.add(new Column(userClass + "wait_time", ColumnType.DOUBLE));
+			columns.add(new Column(userClass + "detour_factor", ColumnType.DOUBLE));
+		}
+
+		// NaN unless the run was aborted as infeasible
+		columns.add(new Column("infeasible_time", ColumnType.DOUBLE));
+
+		COLUMNS = List.copyOf(columns);
+	}
+
+	// dictionaries already read by this JVM, so that appends only read new entries
+	private static final Map<Path, Dictionary> dictionaries = new HashMap<>();
+
+	private SweepResultsStore() {
+	}
+
+	public static synchronized void append(Path directory, RunParameters parameters, String mode, DrtKpis kpis) {
+		try {
+			Files.createDirectories(directory);
+
+			try (FileChannel headerChannel = FileChannel.open(directory.resolve(HEADER_FILE), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE); FileLock lock = headerChannel.lock()) {
+				Header header = headerChannel.size() == 0 ? new Header(ThreadLocalRandom.current().nextLong(), 0, 0, 0) :
+						Header.read(headerChannel);
+
+				Dictionary dictionary = dictionaries.computeIfAbsent(directory.toAbsolutePath(), path -> new Dictionary());
+				dictionary.update(directory, header);
+
+				Map<String, Object> values = getValues(parameters, mode, kpis);
+				for (Column column : COLUMNS) {
+					writeValue(directory, column, header.rows, values.get(column.name()), dictionary);
+				}
+
+				// committing the record makes it visible to readers
+				dictionary.write(directory, header);
+				new Header(header.storeId, header.rows + 1, dictionary.entries.size(), dictionary.bytes).write(headerChannel);
+			}
+		} catch (IOException e) {
+			// the cached dictionary may contain entries that were not committed
+			dictionaries.remove(directory.toAbsolutePath());
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static boolean exists(Path directory) {
+		return Files.exists(directory.resolve(HEADER_FILE));
+	}
+
+	/**
+	 * Maps the records that are committed at the time of the call. File locks are held per JVM, so an overlapping
+	 * lock of another thread would throw; scans and appends of this JVM are serialized on the class instead.
+	 */
+	public static synchronized Scan scan(Path directory) {
+		try (FileChannel headerChannel = FileChannel.open(directory.resolve(HEADER_FILE), StandardOpenOption.READ);
+				FileLock lock = headerChannel.lock(0, Long.MAX_VALUE, true)) {
+			Header header = Header.read(headerChannel);
+
+			Dictionary dictionary = new Dictionary();
+			dictionary.update(directory, header);
+
+			Map<String, ByteBuffer> columns = new LinkedHashMap<>();
+			for (Column column : COLUMNS) {
+				try (FileChannel channel = FileChannel.open(getColumnPath(directory, column), StandardOpenOption.READ)) {
+					columns.put(column.name(), channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							(long)header.rows * column.type().width).order(ByteOrder.LITTLE_ENDIAN));
+				}
+			}
+
+			return new Scan(header.rows, columns, dictionary.entries);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Map<String, Object> getValues(RunParameters parameters, String mode, DrtKpis kpis) {
+		Map<String, Object> values = new HashMap<>();
+		values.put("run", parameters.run());
+		values.put("mode", mode);
+		values.put("fleet_size", parameters.fleetSize());
+		values.put("vulnerable_share", parameters.vulnerableShare());
+		values.put("vulnerable_time", parameters.vulnerableTime());
+		values.put("dispatcher", parameters.dispatcher());
+		values.put("dispatch_interval", parameters.dispatchInterval());
+		values.put("prebook_vulnerable", parameters.prebookVulnerable());
+		values.put("prebooking_share", parameters.prebookingShare());
+
+		putKpis(values, "", kpis.overall());
+		putKpis(values, "vulnerable_", kpis.vulnerable());
+		putKpis(values, "non_vulnerable_", kpis.nonVulnerable());
+		values.put("infeasible_time", kpis.infeasibleTime());
+		return values;
+	}
+
+	private static void putKpis(Map<String, Object> values, String userClass, UserClassKpis kpis) {
+		values.put(userClass + "requests", kpis.requests());
+		values.put(userClass + "rejections", kpis.rejections());
+		values.put(userClass + "rejection_rate", kpis.rejectionRate());
+		values.put(userClass + "wait_time", kpis.waitTime());
+		values.put(userClass + "detour_factor", kpis.detourFactor());
+	}
+
+	private static Path getColumnPath(Path directory, Column column) {
+		return directory.resolve(column.name() + ".col");
+	}
+
+	private static void writeValue(Path directory, Column column, int row, Object value, Dictionary dictionary)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(column.type().width).order(ByteOrder.LITTLE_ENDIAN);
+
+		switch (column.type()) {
+			case INT -> buffer.putInt((Integer)value);
+			case DOUBLE -> buffer.putDouble((Double)value);
+			case BOOLEAN -> buffer.put((byte)((Boolean)value ? 1 : 0));
+			case STRING -> buffer.putInt(dictionary.getCode((String)value));
+		}
+
+		buffer.flip();
+		writeAt(getColumnPath(directory, column), (long)row * column.type().width, buffer);
+	}
+
+	private static void writeAt(Path path, long position, ByteBuffer buffer) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// drop whatever an interrupted append left behind
+			channel.truncate(position);
+
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+
+	private record Header(long storeId, int rows, int dictionaryEntries, long dictionaryBytes) {
+		private static Header read(FileChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int)channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+
+			Preconditions.checkState(buffer.getInt() == MAGIC, "Not a sweep results store");
+			int version = buffer.getInt();
+			Preconditions.checkState(version == VERSION, "Unsupported sweep results store version %s", version);
+
+			int columnCount = buffer.getInt();
+			Preconditions.checkState(columnCount == COLUMNS.size(), "Sweep results store has a different schema");
+
+			for (Column column : COLUMNS) {
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				int type = buffer.getInt();
+
+				Preconditions.checkState(column.name().equals(new String(name, StandardCharsets.UTF_8))
+						&& column.type().ordinal() == type, "Sweep results store has a different schema");
+			}
+
+			return new Header(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getLong());
+		}
+
+		private void write(FileChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(COLUMNS.size());
+
+			for (Column column : COLUMNS) {
+				byte[] name = column.name().getBytes(StandardCharsets.UTF_8);
+				buffer.putInt(name.length);
+				buffer.put(name);
+				buffer.putInt(column.type().ordinal());
+			}
+
+			buffer.putLong(storeId);
+			buffer.putInt(rows);
+			buffer.putInt(dictionaryEntries);
+			buffer.putLong(dictionaryBytes);
+			buffer.flip();
+
+			long position = 0;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			channel.truncate(position);
+		}
+	}
+
+	/**
+	 * Dictionary of the string values. Entries are length-prefixed UTF-8 strings whose codes are their positions.
+	 */
+	private static final class Dictionary {
+		private final List<String> entries = new ArrayList<>();
+		private final Map<String, Integer> codes = new HashMap<>();
+		private long storeId;
+		private long bytes = 0;
+
+		private final List<String> pending = new ArrayList<>();
+
+		private void update(Path directory, Header header) throws IOException {
+			pending.clear();
+
+			if (header.storeId != storeId || header.dictionaryEntries < entries.size()) {
+				// the store was recreated in the meantime, possibly already with as many entries as before
+				entries.clear();
+				codes.clear();
+				storeId = header.storeId;
+				bytes = 0;
+			}
+
+			if (header.dictionaryEntries == entries.size()) {
+				return;
+			}
+
+			try (FileChannel channel = FileChannel.open(directory.resolve(DICTIONARY_FILE), StandardOpenOption.READ)) {
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, bytes, header.dictionaryBytes - bytes)
+						.order(ByteOrder.LITTLE_ENDIAN);
+
+				while (entries.size() < header.dictionaryEntries) {
+					byte[] value = new byte[buffer.getInt()];
+					buffer.get(value);
+					add(new String(value, StandardCharsets.UTF_8));
+				}
+
+				bytes = header.dictionaryBytes;
+			}
+		}
+
+		private void add(String value) {
+			codes.put(value, entries.size());
+			entries.add(value);
+		}
+
+		private int getCode(String value) {
+			Integer code = codes.get(value);
+
+			if (code == null) {
+				code = entries.size();
+				add(value);
+				pending.add(value);
+			}
+
+			return code;
+		}
+
+		private void write(Path directory, Header header) throws IOException {
+			if (pending.isEmpty()) {
+				return;
+			}
+
+			List<byte[]> values = pending.stream().map(value -> value.getBytes(StandardCharsets.UTF_8)).toList();
+			ByteBuffer buffer = ByteBuffer.allocate(values.stream().mapToInt(value -> 4 + value.length).sum())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			values.forEach(value -> buffer.putInt(value.length).put(value));
+			buffer.flip();
+
+			writeAt(directory.resolve(DICTIONARY_FILE), header.dictionaryBytes, buffer);
+			bytes += buffer.limit();
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Committed records of the store. Numeric columns can be scanned as buffers.
+	 */
+	public static final class Scan {
+		private final int rows;
+		private final Map<String, ByteBuffer> columns;
+		private final List<String> dictionary;
+
+		private Scan(int rows, Map<String, ByteBuffer> columns, List<String> dictionary) {
+			this.rows = rows;
+			this.columns = columns;
+			this.dictionary = dictionary;
+		}
+
+		public int getRowCount() {
+			return rows;
+		}
+
+		public IntBuffer getIntColumn(String name) {
+			return getColumn(name).asIntBuffer();
+		}
+
+		public DoubleBuffer getDoubleColumn(String name) {
+			return getColumn(name).asDoubleBuffer();
+		}
+
+		public int getInt(String name, int row) {
+			return getColumn(name).getInt(row * ColumnType.INT.width);
+		}
+
+		public double getDouble(String name, int row) {
+			return getColumn(name).getDouble(row * ColumnType.DOUBLE.width);
+		}
+
+		public boolean getBoolean(String name, int row) {
+			return getColumn(name).get(row * ColumnType.BOOLEAN.width) != 0;
+		}
+
+		public String getString(String name, int row) {
+			return dictionary.get(getColumn(name).getInt(row * ColumnType.STRING.width));
+		}
+
+		private ByteBuffer getColumn(String name) {
+			ByteBuffer column = columns.get(name);
+			Preconditions.checkArgument(column != null, "Unknown column %s", name);
+			return column.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sweep-level CSV table with one row of parameters and KPIs per simulation and DRT mode. Simulations append their row
+ * when they finish. Appends are serialized within the JVM and, through a file lock, between processes that share the
+ * file.
+ */
+public final class SweepResultsTable {
+	private static final String[] USER_CLASSES = { "", "vulnerable_", "non_vulnerable_" };
+
+	private SweepResultsTable() {
+	}
+
+	public static synchronized void append(Path path, RunParameters parameters, String mode, DrtKpis kpis) {
+		try {
+			if (path.toAbsolutePath().getParent() != null) {
+				Files.createDirectories(path.toAbsolutePath().getParent());
+			}
+
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND); FileLock lock = channel.lock()) {
+				StringBuilder builder = new StringBuilder();
+
+				if (channel.size() == 0) {
+					builder.append(String.join(";", getHeader())).append('\n');
+				}
+
+				builder.append(String.join(";", getRow(parameters, mode, kpis))).append('\n');
+				ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static List<String> getHeader() {
+		List<String> header = new ArrayList<>(List.of("run", "mode", "fleet_size", "vulnerable_share",
+				"vulnerable_time", "dispatcher", "dispatch_interval", "prebook_vulnerable", "prebooking_share"));
+
+		for (String userClass : USER_CLASSES) {
+			header.add(userClass + "requests");
+			header.add(userClass + "rejections");
+			header.add(userClass + "rejection_rate");
+			header.add(userClass + "wait_time");
+			header.add(userClass + "detour_factor");
+		}
+
+		header.add("infeasible_time");
+
+		return header;
+	}
+
+	private static List<String> getRow(RunParameters parameters, String mode, DrtKpis kpis) {
+		List<String> row = new ArrayList<>(List.of(parameters.run(), mode, //
+				String.valueOf(parameters.fleetSize()), //
+				String.valueOf(parameters.vulnerableShare()), //
+				String.valueOf(parameters.vulnerableTime()), //
+				parameters.dispatcher(), //
+				String.valueOf(parameters.dispatchInterval()), //
+				String.valueOf(parameters.prebookVulnerable()), //
+				String.valueOf(parameters.prebookingShare())));
+
+		for (UserClassKpis userClassKpis : List.of(kpis.overall(), kpis.vulnerable(), kpis.nonVulnerable())) {
+			row.add(String.valueOf(userClassKpis.requests()));
+			row.add(String.valueOf(userClassKpis.rejections()));
+			row.add(String.valueOf(userClassKpis.rejectionRate()));
+			row.add(String.valueOf(userClassKpis.waitTime()));
+			row.add(String.valueOf(userClassKpis.detourFactor()));
+		}
+
+		row.add(String.valueOf(kpis.infeasibleTime()));
+
+		return row;
+	}
+}
@@ -0,0 +1,11 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+/**
+ * KPIs of the DRT requests of one class of users. Rates and means are NaN if there is nothing to average.
+ *
+ * @param waitTime     mean time between departure and pickup of the performed legs
+ * @param detourFactor mean ratio of the distance travelled on board and the direct distance of the performed legs
+ */
+public record UserClassKpis(int requests, int rejections, double rejectionRate, double waitTime,
+		double detourFactor) {
+}
@@ -1,15 +1,34 @@
 package org.sinfonica.inclusive_ccam.heterogenous_users.drt;
 
+import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.drt.optimizer.insertion.CostCalculationStrategy;
 import org.matsim.contrib.drt.optimizer.insertion.InsertionDetourTimeCalculator;
 import org.matsim.contrib.drt.optimizer.insertion.InsertionGenerator;
 import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestRejectedEventHandler;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestScheduledEvent;
+import org.matsim.contrib.dvrp.passenger.PassengerRequestScheduledEventHandler;
+import org.matsim.core.events.MobsimScopeEventHandler;
 
-public class FairInsertionCostCalculator implements CostCalculationStrategy {
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Divides the time loss of an insertion by the interaction time of the request. The interaction time is computed once
+ * per request and kept until the request is scheduled or rejected, so this has to be registered as a mobsim scope
+ * event handler.
+ */
+public class FairInsertionCostCalculator implements CostCalculationStrategy, PassengerRequestScheduledEventHandler,
+        PassengerRequestRejectedEventHandler, MobsimScopeEventHandler {
     private final CostCalculationStrategy delegate;
 
     private final UserSpecificStopTimeProvider userSpecificStopTimeProvider;
 
+    // request ids are unique objects, so lookups are by identity in practice
+    private final Map<Id<Request>, Double> stopDurations = new ConcurrentHashMap<>();
+
     public FairInsertionCostCalculator(UserSpecificStopTimeProvider userSpecificStopTimeProvider) {
         this.delegate = new RejectSoftConstraintViolations();
         this.userSpecificStopTimeProvider = userSpecificStopTimeProvider;
@@ -19,6 +38,26 @@ public class FairInsertionCostCalculator implements CostCalculationStrategy {
     @Override
     public double calcCost(DrtRequest request, InsertionGenerator.Insertion insertion, InsertionDetourTimeCalculator.DetourTimeInfo detourTimeInfo) {
         double timeLoss = delegate.calcCost(request, insertion, detourTimeInfo);
-        return timeLoss / this.userSpecificStopTimeProvider.calcStopDuration(request.getPassengerIds());
+        return timeLoss / getStopDuration(request);
+    }
+
+    private double getStopDuration(DrtRequest request) {
+        Double stopDuration = stopDurations.get(request.getId());
+        if (stopDuration == null) {
+            // concurrent threads may compute the same value twice, which is harmless
+            stopDuration = this.userSpecificStopTimeProvider.calcStopDuration(request.getPassengerIds());
+            stopDurations.put(request.getId(), stopDuration);
+        }
+        return stopDuration;
+    }
+
+    @Override
+    public void handleEvent(PassengerRequestScheduledEvent event) {
+        stopDurations.remove(event.getRequestId());
+    }
+
+    @Override
+    public void handleEvent(PassengerRequestRejectedEvent event) {
+        stopDurations.remove(event.getRequestId());
     }
 }
@@ -8,17 +8,28 @@ import org.matsim.contrib.drt.passenger.DrtRequest;
 import org.matsim.contrib.drt.stops.PassengerStopDurationProvider;
 import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Objects;
 
 public class UserSpecificStopTimeProvider implements PassengerStopDurationProvider {
 
     private final Population population;
     private final static double DEFAULT_STOP_DURATION = 60;
+    private final static String INTERACTION_TIME_ATTRIBUTE = "drtInteractionTime";
+
+    /**
+     * Interaction times indexed by {@link Id#index()}, NaN for persons without one. The table is resolved when the
+     * provider is created (i.e. at QSim start) and only rebuilt if the number of persons in the population changes.
+     */
+    private record StopDurationTable(double[] stopDurations, int populationSize) {
+    }
+
+    private volatile StopDurationTable table;
 
     @Inject
     public UserSpecificStopTimeProvider(Population population) {
         this.population = population;
+        this.table = buildTable(population);
     }
 
     @Override
@@ -32,12 +43,45 @@ public class UserSpecificStopTimeProvider implements PassengerStopDurationProvid
     }
 
     public double calcStopDuration(Collection<Id<Person>> passengers) {
-        return passengers.stream()
-                .map(id -> this.population.getPersons().get(id))
-                .map(p -> p.getAttributes().getAttribute("drtInteractionTime"))
-                .filter(Objects::nonNull)
-                .filter(o -> o instanceof Double)
-                .mapToDouble(d -> (double) d)
-                .max().orElse(DEFAULT_STOP_DURATION);
+        double[] stopDurations = getTable().stopDurations;
+        double stopDuration = Double.NEGATIVE_INFINITY;
+        for (Id<Person> passengerId : passengers) {
+            int index = passengerId.index();
+            // NaN (no interaction time) never compares greater
+            if (index < stopDurations.length && stopDurations[index] > stopDuration) {
+                stopDuration = stopDurations[index];
+            }
+        }
+        return stopDuration == Double.NEGATIVE_INFINITY ? DEFAULT_STOP_DURATION : stopDuration;
+    }
+
+    private StopDurationTable getTable() {
+        StopDurationTable current = this.table;
+        if (current.populationSize != population.getPersons().size()) {
+            synchronized (this) {
+                current = this.table;
+                if (current.populationSize != population.getPersons().size()) {
+                    current = buildTable(population);
+                    this.table = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static StopDurationTable buildTable(Population population) {
+        int size = 0;
+        for (Id<Person> personId : population.getPersons().keySet()) {
+            size = Math.max(size, personId.index() + 1);
+        }
+
+        double[] stopDurations = new double[size];
+        Arrays.fill(stopDurations, Double.NaN);
+        for (Person person : population.getPersons().values()) {
+            if (person.getAttributes().getAttribute(INTERACTION_TIME_ATTRIBUTE) instanceof Double interactionTime) {
+                stopDurations[person.getId().index()] = interactionTime;
+            }
+        }
+        return new StopDurationTable(stopDurations, population.getPersons().size());
     }
 }
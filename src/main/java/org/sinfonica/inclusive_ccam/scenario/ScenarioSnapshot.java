@@ -0,0 +1,568 @@
+package org.sinfonica.inclusive_ccam.scenario;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicleSpecification;
+import org.matsim.contrib.dvrp.fleet.FleetSpecification;
+import org.matsim.contrib.dvrp.fleet.FleetSpecificationImpl;
+import org.matsim.contrib.dvrp.fleet.ImmutableDvrpVehicleSpecification;
+import org.matsim.core.network.TimeDependentNetwork;
+import org.matsim.core.population.routes.RouteFactories;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compact binary snapshot of a preprocessed scenario (see {@link ScenarioTemplates#loadScenario}): the network, the
+ * population and any number of DRT fleet specifications, keyed by the path of their vehicles file relative to the
+ * config (see {@link ScenarioTemplates#getRelativeInputPath}), like the input files in the input key. A snapshot is
+ * written once and then read by every simulation process with a single memory-mapped bulk read instead of parsing the
+ * XML inputs.
+ *
+ * <p>
+ * File layout (big endian): magic number, format version, the input key of the scenario (see
+ * {@link ScenarioTemplates}), a table of all strings (ids, modes, types, attribute names) and the body, in which
+ * strings are referenced by their index in the table (-1 for null). Undefined times are stored as NaN.
+ *
+ * <p>
+ * Only attribute values of type String, Double, Integer, Long and Boolean are stored; writing a scenario with any other
+ * attribute type fails. Routes are stored by type, start and end link and description, so the vehicle ids of network
+ * routes are not kept. Network change events are not stored either, so time-variant networks cannot be written.
+ */
+public final class ScenarioSnapshot {
+	private static final Logger log = LogManager.getLogger(ScenarioSnapshot.class);
+
+	private static final int MAGIC = 0x534e4150; // "SNAP"
+	private static final int VERSION = 1;
+
+	private static final byte ACTIVITY = 0;
+	private static final byte LEG = 1;
+
+	private static final byte STRING = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+
+	private ScenarioSnapshot() {
+	}
+
+	public static void write(Path path, String inputKey, Scenario scenario, Map<String, FleetSpecification> fleets) {
+		Preconditions.checkArgument(!(scenario.getNetwork() instanceof TimeDependentNetwork network)
+				|| network.getNetworkChangeEvents().isEmpty(), "Network change events cannot be stored in a scenario snapshot");
+
+		try {
+			Encoder encoder = new Encoder();
+			encoder.writeFleets(fleets);
+			encoder.writeNetwork(scenario.getNetwork());
+			encoder.writePopulation(scenario.getPopulation());
+			encoder.body.flush();
+
+			Path parent = path.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Path temporaryPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+
+			try (DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temporaryPath), 1 << 20))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				writeBytes(output, inputKey.getBytes(StandardCharsets.UTF_8));
+
+				output.writeInt(encoder.strings.size());
+				for (String string : encoder.strings.keySet()) {
+					writeBytes(output, string.getBytes(StandardCharsets.UTF_8));
+				}
+
+				encoder.bodyBytes.writeTo(output);
+			}
+
+			// readers never see a partially written snapshot
+			Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.info("Wrote scenario snapshot " + path + " (" + Files.size(path) + " bytes)");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Fills the (empty) network and population of the scenario from the snapshot and returns the fleet
+	 * specifications, keyed by the relative path of their vehicles file.
+	 */
+	public static Map<String, FleetSpecification> read(Path path, String inputKey, Scenario scenario) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Preconditions.checkState(channel.size() <= Integer.MAX_VALUE, "Scenario snapshot %s is too large", path);
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			Preconditions.checkState(buffer.getInt() == MAGIC, "%s is not a scenario snapshot", path);
+			int version = buffer.getInt();
+			Preconditions.checkState(version == VERSION, "Unsupported scenario snapshot version %s in %s", version,
+					path);
+
+			String snapshotKey = readString(buffer);
+			Preconditions.checkState(snapshotKey.equals(inputKey),
+					"Scenario snapshot %s was created from other inputs (%s) than configured (%s)", path, snapshotKey,
+					inputKey);
+
+			String[] strings = new String[buffer.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = readString(buffer);
+			}
+
+			Decoder decoder = new Decoder(buffer, strings);
+			Map<String, FleetSpecification> fleets = decoder.readFleets();
+			decoder.readNetwork(scenario.getNetwork());
+			decoder.readPopulation(scenario.getPopulation());
+
+			log.info("Read scenario snapshot " + path + " with " + scenario.getPopulation().getPersons().size()
+					+ " persons and " + fleets.size() + " fleets");
+			return fleets;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static final class Encoder {
+		private final Map<String, Integer> strings = new LinkedHashMap<>();
+		private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(1 << 20);
+		private final DataOutputStream body = new DataOutputStream(new BufferedOutputStream(bodyBytes, 1 << 16));
+
+		private void writeString(Object value) throws IOException {
+			body.writeInt(value == null ? -1 : strings.computeIfAbsent(value.toString(), s -> strings.size()));
+		}
+
+		private void writeTime(OptionalTime time) throws IOException {
+			body.writeDouble(time.isDefined() ? time.seconds() : Double.NaN);
+		}
+
+		private void writeCoord(Coord coord) throws IOException {
+			body.writeBoolean(coord != null);
+
+			if (coord != null) {
+				body.writeDouble(coord.getX());
+				body.writeDouble(coord.getY());
+				body.writeDouble(coord.hasZ() ? coord.getZ() : Double.NaN);
+			}
+		}
+
+		private void writeAttributes(Attributes attributes) throws IOException {
+			Map<String, Object> values = attributes.getAsMap();
+			body.writeInt(values.size());
+
+			for (Map.Entry<String, Object> entry : values.entrySet()) {
+				writeString(entry.getKey());
+				Object value = entry.getValue();
+
+				if (value instanceof String string) {
+					body.writeByte(STRING);
+					writeString(string);
+				} else if (value instanceof Double number) {
+					body.writeByte(DOUBLE);
+					body.writeDouble(number);
+				} else if (value instanceof Integer number) {
+					body.writeByte(INTEGER);
+					body.writeInt(number);
+				} else if (value instanceof Long number) {
+					body.writeByte(LONG);
+					body.writeLong(number);
+				} else if (value instanceof Boolean flag) {
+					body.writeByte(BOOLEAN);
+					body.writeBoolean(flag);
+				} else {
+					throw new IllegalArgumentException("Attribute " + entry.getKey() + " of type "
+							+ value.getClass().getName() + " cannot be stored in a scenario snapshot");
+				}
+			}
+		}
+
+		private void writeFleets(Map<String, FleetSpecification> fleets) throws IOException {
+			body.writeInt(fleets.size());
+
+			for (Map.Entry<String, FleetSpecification> fleet : fleets.entrySet()) {
+				writeString(fleet.getKey());
+				body.writeInt(fleet.getValue().getVehicleSpecifications().size());
+
+				for (DvrpVehicleSpecification vehicle : fleet.getValue().getVehicleSpecifications().values()) {
+					writeString(vehicle.getId());
+					writeString(vehicle.getStartLinkId());
+					body.writeInt(vehicle.getCapacity());
+					body.writeDouble(vehicle.getServiceBeginTime());
+					body.writeDouble(vehicle.getServiceEndTime());
+				}
+			}
+		}
+
+		private void writeNetwork(Network network) throws IOException {
+			writeString(network.getName());
+			body.writeDouble(network.getCapacityPeriod());
+			body.writeDouble(network.getEffectiveCellSize());
+			body.writeDouble(network.getEffectiveLaneWidth());
+			writeAttributes(network.getAttributes());
+
+			Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+			body.writeInt(network.getNodes().size());
+
+			for (Node node : network.getNodes().values()) {
+				nodeIndices.put(node.getId(), nodeIndices.size());
+				writeString(node.getId());
+				writeCoord(node.getCoord());
+				writeAttributes(node.getAttributes());
+			}
+
+			body.writeInt(network.getLinks().size());
+
+			for (Link link : network.getLinks().values()) {
+				writeString(link.getId());
+				body.writeInt(nodeIndices.get(link.getFromNode().getId()));
+				body.writeInt(nodeIndices.get(link.getToNode().getId()));
+				body.writeDouble(link.getLength());
+				body.writeDouble(link.getFreespeed());
+				body.writeDouble(link.getCapacity());
+				body.writeDouble(link.getNumberOfLanes());
+
+				body.writeInt(link.getAllowedModes().size());
+				for (String mode : link.getAllowedModes()) {
+					writeString(mode);
+				}
+
+				writeAttributes(link.getAttributes());
+			}
+		}
+
+		private void writePopulation(Population population) throws IOException {
+			writeString(population.getName());
+			writeAttributes(population.getAttributes());
+			body.writeInt(population.getPersons().size());
+
+			for (Person person : population.getPersons().values()) {
+				writeString(person.getId());
+				writeAttributes(person.getAttributes());
+				body.writeInt(person.getPlans().indexOf(person.getSelectedPlan()));
+				body.writeInt(person.getPlans().size());
+
+				for (Plan plan : person.getPlans()) {
+					body.writeDouble(plan.getScore() == null ? Double.NaN : plan.getScore());
+					writeString(plan.getType());
+					writeAttributes(plan.getAttributes());
+					body.writeInt(plan.getPlanElements().size());
+
+					for (PlanElement element : plan.getPlanElements()) {
+						if (element instanceof Activity activity) {
+							body.writeByte(ACTIVITY);
+							writeActivity(activity);
+						} else {
+							body.writeByte(LEG);
+							writeLeg((Leg)element);
+						}
+					}
+				}
+			}
+		}
+
+		private void writeActivity(Activity activity) throws IOException {
+			writeString(activity.getType());
+			writeString(activity.getLinkId());
+			writeString(activity.getFacilityId());
+			writeCoord(activity.getCoord());
+			writeTime(activity.getStartTime());
+			writeTime(activity.getEndTime());
+			writeTime(activity.getMaximumDuration());
+			writeAttributes(activity.getAttributes());
+		}
+
+		private void writeLeg(Leg leg) throws IOException {
+			writeString(leg.getMode());
+			writeTime(leg.getDepartureTime());
+			writeTime(leg.getTravelTime());
+			writeAttributes(leg.getAttributes());
+
+			Route route = leg.getRoute();
+			body.writeBoolean(route != null);
+
+			if (route != null) {
+				writeString(route.getRouteType());
+				writeString(route.getStartLinkId());
+				writeString(route.getEndLinkId());
+				writeString(route.getRouteDescription());
+				body.writeDouble(route.getDistance());
+				writeTime(route.getTravelTime());
+			}
+		}
+	}
+
+	private static final class Decoder {
+		private final ByteBuffer buffer;
+		private final String[] strings;
+
+		private Decoder(ByteBuffer buffer, String[] strings) {
+			this.buffer = buffer;
+			this.strings = strings;
+		}
+
+		private String readString() {
+			int index = buffer.getInt();
+			return index < 0 ? null : strings[index];
+		}
+
+		private <T> Id<T> readId(Class<T> type) {
+			String id = readString();
+			return id == null ? null : Id.create(id, type);
+		}
+
+		private double readTime() {
+			return buffer.getDouble();
+		}
+
+		private Coord readCoord() {
+			if (buffer.get() == 0) {
+				return null;
+			}
+
+			double x = buffer.getDouble();
+			double y = buffer.getDouble();
+			double z = buffer.getDouble();
+			return Double.isNaN(z) ? new Coord(x, y) : new Coord(x, y, z);
+		}
+
+		private void readAttributes(Attributes attributes) {
+			int count = buffer.getInt();
+
+			for (int i = 0; i < count; i++) {
+				String key = readString();
+
+				Object value = switch (buffer.get()) {
+					case STRING -> readString();
+					case DOUBLE -> buffer.getDouble();
+					case INTEGER -> buffer.getInt();
+					case LONG -> buffer.getLong();
+					case BOOLEAN -> buffer.get() != 0;
+					default -> throw new IllegalStateException("Unknown attribute type in scenario snapshot");
+				};
+
+				attributes.putAttribute(key, value);
+			}
+		}
+
+		private Map<String, FleetSpecification> readFleets() {
+			Map<String, FleetSpecification> fleets = new LinkedHashMap<>();
+			int fleetCount = buffer.getInt();
+
+			for (int i = 0; i < fleetCount; i++) {
+				String vehiclesFile = readString();
+				FleetSpecificationImpl fleet = new FleetSpecificationImpl();
+				int vehicleCount = buffer.getInt();
+
+				for (int j = 0; j < vehicleCount; j++) {
+					fleet.addVehicleSpecification(ImmutableDvrpVehicleSpecification.newBuilder() //
+							.id(readId(DvrpVehicle.class)) //
+							.startLinkId(readId(Link.class)) //
+							.capacity(buffer.getInt()) //
+							.serviceBeginTime(buffer.getDouble()) //
+							.serviceEndTime(buffer.getDouble()) //
+							.build());
+				}
+
+				fleets.put(vehiclesFile, fleet);
+			}
+
+			return fleets;
+		}
+
+		private void readNetwork(Network network) {
+			NetworkFactory factory = network.getFactory();
+
+			network.setName(readString());
+			network.setCapacityPeriod(buffer.getDouble());
+			network.setEffectiveCellSize(buffer.getDouble());
+			network.setEffectiveLaneWidth(buffer.getDouble());
+			readAttributes(network.getAttributes());
+
+			Node[] nodes = new Node[buffer.getInt()];
+			for (int i = 0; i < nodes.length; i++) {
+				Id<Node> nodeId = readId(Node.class);
+				nodes[i] = factory.createNode(nodeId, readCoord());
+				readAttributes(nodes[i].getAttributes());
+				network.addNode(nodes[i]);
+			}
+
+			int linkCount = buffer.getInt();
+			for (int i = 0; i < linkCount; i++) {
+				Link link = factory.createLink(readId(Link.class), nodes[buffer.getInt()], nodes[buffer.getInt()]);
+				link.setLength(buffer.getDouble());
+				link.setFreespeed(buffer.getDouble());
+				link.setCapacity(buffer.getDouble());
+				link.setNumberOfLanes(buffer.getDouble());
+
+				String[] modes = new String[buffer.getInt()];
+				for (int j = 0; j < modes.length; j++) {
+					modes[j] = readString();
+				}
+				link.setAllowedModes(Set.of(modes));
+
+				readAttributes(link.getAttributes());
+				network.addLink(link);
+			}
+		}
+
+		private void readPopulation(Population population) {
+			PopulationFactory factory = population.getFactory();
+			RouteFactories routeFactories = factory.getRouteFactories();
+
+			population.setName(readString());
+			readAttributes(population.getAttributes());
+
+			int personCount = buffer.getInt();
+			for (int i = 0; i < personCount; i++) {
+				Person person = factory.createPerson(readId(Person.class));
+				readAttributes(person.getAttributes());
+
+				int selectedPlan = buffer.getInt();
+				int planCount = buffer.getInt();
+				List<Plan> plans = new ArrayList<>(planCount);
+
+				for (int j = 0; j < planCount; j++) {
+					Plan plan = factory.createPlan();
+					double score = buffer.getDouble();
+					plan.setScore(Double.isNaN(score) ? null : score);
+					plan.setType(readString());
+					readAttributes(plan.getAttributes());
+
+					int elementCount = buffer.getInt();
+					for (int k = 0; k < elementCount; k++) {
+						if (buffer.get() == ACTIVITY) {
+							plan.addActivity(readActivity(factory));
+						} else {
+							plan.addLeg(readLeg(factory, routeFactories));
+						}
+					}
+
+					person.addPlan(plan);
+					plans.add(plan);
+				}
+
+				if (selectedPlan >= 0) {
+					person.setSelectedPlan(plans.get(selectedPlan));
+				}
+
+				population.addPerson(person);
+			}
+		}
+
+		private Activity readActivity(PopulationFactory factory) {
+			String type = readString();
+			Id<Link> linkId = readId(Link.class);
+			Id<ActivityFacility> facilityId = readId(ActivityFacility.class);
+			Coord coord = readCoord();
+
+			Activity activity = factory.createActivityFromLinkId(type, linkId);
+			activity.setFacilityId(facilityId);
+			activity.setCoord(coord);
+
+			double startTime = readTime();
+			if (!Double.isNaN(startTime)) {
+				activity.setStartTime(startTime);
+			}
+
+			double endTime = readTime();
+			if (!Double.isNaN(endTime)) {
+				activity.setEndTime(endTime);
+			}
+
+			double maximumDuration = readTime();
+			if (!Double.isNaN(maximumDuration)) {
+				activity.setMaximumDuration(maximumDuration);
+			}
+
+			readAttributes(activity.getAttributes());
+			return activity;
+		}
+
+		private Leg readLeg(PopulationFactory factory, RouteFactories routeFactories) {
+			Leg leg = factory.createLeg(readString());
+
+			double departureTime = readTime();
+			if (!Double.isNaN(departureTime)) {
+				leg.setDepartureTime(departureTime);
+			}
+
+			double travelTime = readTime();
+			if (!Double.isNaN(travelTime)) {
+				leg.setTravelTime(travelTime);
+			}
+
+			readAttributes(leg.getAttributes());
+
+			if (buffer.get() != 0) {
+				String routeType = readString();
+				Id<Link> startLinkId = readId(Link.class);
+				Id<Link> endLinkId = readId(Link.class);
+
+				Route route = routeFactories.createRoute(routeFactories.getRouteClassForType(routeType), startLinkId,
+						endLinkId);
+
+				String description = readString();
+				if (description != null) {
+					route.setRouteDescription(description);
+				}
+
+				route.setDistance(buffer.getDouble());
+
+				double routeTravelTime = readTime();
+				if (!Double.isNaN(routeTravelTime)) {
+					route.setTravelTime(routeTravelTime);
+				}
+
+				leg.setRoute(route);
+			}
+
+			return leg;
+		}
+	}
+}
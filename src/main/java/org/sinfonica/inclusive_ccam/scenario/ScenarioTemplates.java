@@ -0,0 +1,271 @@
+package org.sinfonica.inclusive_ccam.scenario;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.contrib.drt.routing.DrtRoute;
+import org.matsim.contrib.drt.routing.DrtRouteFactory;
+import org.matsim.contrib.dvrp.fleet.FleetSpecification;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.FacilitiesConfigGroup.FacilitiesSource;
+import org.matsim.core.network.algorithms.NetworkSegmentDoubleLinks;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Loads the scenarios of the simulations and keeps their preprocessed network and population as templates, so that
+ * batch runs in one JVM (see RunBenchmark and RunFleetSizing) only parse the input files once. Templates are never
+ * handed out; every run gets its own copy to which it can apply its person attributes.
+ *
+ * <p>
+ * Only the network and the population are covered. Configs that load further containers (facilities, vehicles,
+ * households, lanes, transit) or a time-variant network are always loaded from their files.
+ *
+ * <p>
+ * Instead of the XML inputs, a {@link ScenarioSnapshot} can be read. The DRT fleets stored in the snapshot are then
+ * available through {@link #getSnapshotFleets(Scenario)}.
+ */
+public final class ScenarioTemplates {
+	private static final Logger log = LogManager.getLogger(ScenarioTemplates.class);
+
+	private static final String SNAPSHOT_FLEETS = "scenarioSnapshotFleets";
+
+	private static final Map<String, CompletableFuture<Scenario>> templates = new ConcurrentHashMap<>();
+
+	private ScenarioTemplates() {
+	}
+
+	/**
+	 * Loads the scenario from its input files: routes of DRT legs are removed and double links are segmented. If a
+	 * snapshot path is given, the already preprocessed network and population are read from the snapshot instead.
+	 */
+	public static Scenario loadScenario(Config config, Set<String> drtModes, @Nullable Path snapshotPath) {
+		Scenario scenario = createScenario(config);
+
+		if (snapshotPath != null) {
+			// the snapshot does not contain network change events
+			Preconditions.checkArgument(!config.network().isTimeVariantNetwork(),
+					"Scenario snapshots cannot be used with a time-variant network");
+			Map<String, FleetSpecification> fleets = ScenarioSnapshot.read(snapshotPath, getInputKey(config, drtModes),
+					scenario);
+			scenario.addScenarioElement(SNAPSHOT_FLEETS, fleets);
+			return scenario;
+		}
+
+		ScenarioUtils.loadScenario(scenario);
+		scenario.getPopulation().getPersons().values().stream()
+				.flatMap(p -> p.getSelectedPlan().getPlanElements().stream())
+				.filter(e -> e instanceof Leg)
+				.map(e -> (Leg)e)
+				.filter(l -> drtModes.contains(l.getMode()))
+				.forEach(l -> l.setRoute(null));
+
+		// avoid two links connecting the same nodes
+		new NetworkSegmentDoubleLinks().run(scenario.getNetwork());
+		return scenario;
+	}
+
+	/**
+	 * Same as {@link #loadScenario(Config, Set, Path)}, but the network and the population are copied from a template
+	 * that is loaded by the first run with the same input files.
+	 */
+	public static Scenario copyFromTemplate(Config config, Set<String> drtModes, @Nullable Path snapshotPath) {
+		if (!isTemplateSupported(config)) {
+			log.warn("Config loads more than network and population, not using a scenario template");
+			return loadScenario(config, drtModes, snapshotPath);
+		}
+
+		Scenario template = getTemplate(config, drtModes, snapshotPath);
+
+		Scenario scenario = createScenario(config);
+		copyNetwork(template.getNetwork(), scenario.getNetwork());
+		copyPopulation(template.getPopulation(), scenario.getPopulation());
+
+		// fleet specifications are not modified by the simulations, so they are shared
+		if (template.getScenarioElement(SNAPSHOT_FLEETS) != null) {
+			scenario.addScenarioElement(SNAPSHOT_FLEETS, template.getScenarioElement(SNAPSHOT_FLEETS));
+		}
+
+		return scenario;
+	}
+
+	/**
+	 * Returns the fleet specifications that were read from a snapshot together with the scenario, keyed by the path of
+	 * their vehicles file (see {@link #getRelativeInputPath}), or an empty map if the scenario was loaded from its input
+	 * files.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, FleetSpecification> getSnapshotFleets(Scenario scenario) {
+		Object fleets = scenario.getScenarioElement(SNAPSHOT_FLEETS);
+		return fleets == null ? Collections.emptyMap() : (Map<String, FleetSpecification>)fleets;
+	}
+
+	/**
+	 * Identifies the inputs from which a scenario is loaded. Templates and snapshots are only used for configs with
+	 * the same key.
+	 */
+	public static String getInputKey(Config config, Set<String> drtModes) {
+		return String.join("|", //
+				getRelativeInputPath(config, config.network().getInputFileURL(config.getContext())), //
+				String.valueOf(config.network().getInputCRS()), //
+				getRelativeInputPath(config, config.plans().getInputFileURL(config.getContext())), //
+				String.valueOf(config.plans().getInputCRS()), //
+				String.valueOf(config.global().getCoordinateSystem()), //
+				String.valueOf(new TreeSet<>(drtModes)));
+	}
+
+	/**
+	 * Path of an input file relative to the directory of the config. Sweeps run on several machines that may mount the
+	 * shared inputs under different paths, so snapshots and their fleets are identified by relative paths. Inputs that
+	 * are not local files, or configs that were not read from a file, are identified by their URL.
+	 */
+	public static String getRelativeInputPath(Config config, @Nullable URL url) {
+		URL context = config.getContext();
+		if (url == null || context == null || !"file".equals(url.getProtocol())
+				|| !"file".equals(context.getProtocol())) {
+			return String.valueOf(url);
+		}
+
+		try {
+			Path configDirectory = Path.of(context.toURI()).toAbsolutePath().getParent();
+			Path input = Path.of(url.toURI()).toAbsolutePath();
+			if (configDirectory == null) {
+				return url.toString();
+			}
+
+			return configDirectory.relativize(input).normalize().toString().replace(File.separatorChar, '/');
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			// not a hierarchical file URI (or one on another file system root), so it cannot be relativized
+			return url.toString();
+		}
+	}
+
+	private static Scenario createScenario(Config config) {
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		scenario.getPopulation().getFactory().getRouteFactories().setRouteFactory(DrtRoute.class,
+				new DrtRouteFactory());
+		return scenario;
+	}
+
+	private static boolean isTemplateSupported(Config config) {
+		return config.facilities().getInputFile() == null
+				&& config.facilities().getFacilitiesSource() == FacilitiesSource.none
+				&& config.vehicles().getVehiclesFile() == null
+				&& config.households().getInputFile() == null
+				&& config.network().getLaneDefinitionsFile() == null
+				// network change events are not copied
+				&& !config.network().isTimeVariantNetwork()
+				&& config.transit().getTransitScheduleFile() == null;
+	}
+
+	private static Scenario getTemplate(Config config, Set<String> drtModes, @Nullable Path snapshotPath) {
+		// configs in different directories may refer to different files by the same relative paths
+		String key = String.join("|", getInputKey(config, drtModes), //
+				String.valueOf(config.network().getInputFileURL(config.getContext())), //
+				String.valueOf(config.plans().getInputFileURL(config.getContext())));
+
+		CompletableFuture<Scenario> template = new CompletableFuture<>();
+		CompletableFuture<Scenario> existing = templates.putIfAbsent(key, template);
+
+		if (existing == null) {
+			log.info("Loading scenario template for " + key);
+
+			try {
+				template.complete(loadScenario(config, drtModes, snapshotPath));
+			} catch (RuntimeException e) {
+				templates.remove(key);
+				template.completeExceptionally(e);
+				throw e;
+			}
+		} else {
+			template = existing;
+		}
+
+		try {
+			return template.join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("Loading scenario template " + key + " failed in another simulation",
+					e.getCause());
+		}
+	}
+
+	private static void copyNetwork(Network template, Network network) {
+		NetworkFactory factory = network.getFactory();
+
+		network.setName(template.getName());
+		network.setCapacityPeriod(template.getCapacityPeriod());
+		network.setEffectiveCellSize(template.getEffectiveCellSize());
+		network.setEffectiveLaneWidth(template.getEffectiveLaneWidth());
+		AttributesUtils.copyAttributesFromTo(template, network);
+
+		for (Node templateNode : template.getNodes().values()) {
+			Node node = factory.createNode(templateNode.getId(), templateNode.getCoord());
+			AttributesUtils.copyAttributesFromTo(templateNode, node);
+			network.addNode(node);
+		}
+
+		for (Link templateLink : template.getLinks().values()) {
+			Link link = factory.createLink(templateLink.getId(),
+					network.getNodes().get(templateLink.getFromNode().getId()),
+					network.getNodes().get(templateLink.getToNode().getId()));
+			link.setLength(templateLink.getLength());
+			link.setFreespeed(templateLink.getFreespeed());
+			link.setCapacity(templateLink.getCapacity());
+			link.setNumberOfLanes(templateLink.getNumberOfLanes());
+			link.setAllowedModes(templateLink.getAllowedModes());
+			AttributesUtils.copyAttributesFromTo(templateLink, link);
+			network.addLink(link);
+		}
+	}
+
+	private static void copyPopulation(Population template, Population population) {
+		PopulationFactory factory = population.getFactory();
+
+		population.setName(template.getName());
+		AttributesUtils.copyAttributesFromTo(template, population);
+
+		// same insertion order as the template, so that per-person random draws are reproducible
+		for (Person templatePerson : template.getPersons().values()) {
+			Person person = factory.createPerson(templatePerson.getId());
+			AttributesUtils.copyAttributesFromTo(templatePerson, person);
+
+			for (Plan templatePlan : templatePerson.getPlans()) {
+				Plan plan = factory.createPlan();
+				PopulationUtils.copyFromTo(templatePlan, plan);
+				person.addPlan(plan);
+
+				if (templatePlan == templatePerson.getSelectedPlan()) {
+					person.setSelectedPlan(plan);
+				}
+			}
+
+			population.addPerson(person);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.sinfonica.inclusive_ccam.travel_time;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.drt.optimizer.insertion.DetourTimeEstimator;
+import org.matsim.contrib.dvrp.path.VrpPaths;
+import org.matsim.core.router.util.TravelTime;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Time-dependent detour time estimator that only computes what is queried. For every origin node and time-of-day bin
+ * that is requested, a one-to-all tree is computed with the link travel times at the time each link is entered,
+ * starting at the beginning of the bin. Trees are kept in a bounded cache which evicts the least recently used ones.
+ *
+ * <p>
+ * In contrast to {@link TravelTimeMatrix}, nothing is computed upfront and congested periods are covered by their
+ * own bins.
+ */
+public class LazyTravelTimeEstimator implements DetourTimeEstimator {
+	private final NetworkGraph graph;
+	private final TravelTime travelTime;
+	private final double timeBinSize;
+
+	private final LoadingCache<Long, float[]> trees;
+	private final ThreadLocal<ShortestPathTree> searches;
+
+	public LazyTravelTimeEstimator(Network network, TravelTime travelTime, double timeBinSize, int maximumTrees) {
+		Preconditions.checkArgument(timeBinSize > 0, "timeBinSize must be positive");
+		Preconditions.checkArgument(maximumTrees > 0, "maximumTrees must be positive");
+
+		this.graph = new NetworkGraph(network);
+		this.travelTime = travelTime;
+		this.timeBinSize = timeBinSize;
+		this.searches = ThreadLocal.withInitial(() -> new ShortestPathTree(graph));
+
+		this.trees = CacheBuilder.newBuilder() //
+				.maximumSize(maximumTrees) //
+				.build(new CacheLoader<Long, float[]>() {
+					@Override
+					public float[] load(Long key) {
+						return calculateTree((int)(key >>> 32), key.intValue());
+					}
+				});
+	}
+
+	@Override
+	public double estimateTime(Link from, Link to, double departureTime) {
+		if (from == to) {
+			return 0.0;
+		}
+
+		double duration = VrpPaths.FIRST_LINK_TT;
+		float[] tree = getTree(graph.getNodeIndex(from.getToNode()), departureTime + duration);
+		duration += tree[graph.getNodeIndex(to.getFromNode())];
+		return duration + travelTime.getLinkTravelTime(to, departureTime + duration, null, null);
+	}
+
+	private float[] getTree(int origin, double departureTime) {
+		int timeBin = (int)Math.max(0, Math.floor(departureTime / timeBinSize));
+		return trees.getUnchecked(((long)origin << 32) | timeBin);
+	}
+
+	private float[] calculateTree(int origin, int timeBin) {
+		ShortestPathTree search = searches.get();
+		search.calculate(origin, timeBin * timeBinSize,
+				(link, time) -> travelTime.getLinkTravelTime(graph.links[link], time, null, null));
+
+		float[] tree = new float[graph.nodeCount];
+		for (int node = 0; node < graph.nodeCount; node++) {
+			tree[node] = (float)search.getTime(node);
+		}
+		return tree;
+	}
+}
@@ -0,0 +1,70 @@
+package org.sinfonica.inclusive_ccam.travel_time;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Compact adjacency representation of a network. Nodes are sorted by id and the links are grouped by their from node,
+ * so the indices are the same for every network with the same content.
+ */
+final class NetworkGraph {
+	final int nodeCount;
+	final Node[] nodes;
+	final Link[] links;
+	final int[] linkToNode;
+	final int[] firstOutLink;
+
+	private final int[] nodeIndices;
+	private final int[] linkIndices;
+
+	NetworkGraph(Network network) {
+		nodes = network.getNodes().values().stream().sorted(Comparator.comparing(Node::getId)).toArray(Node[]::new);
+		nodeCount = nodes.length;
+
+		nodeIndices = new int[Arrays.stream(nodes).mapToInt(n -> n.getId().index()).max().orElse(-1) + 1];
+		Arrays.fill(nodeIndices, -1);
+		for (int i = 0; i < nodeCount; i++) {
+			nodeIndices[nodes[i].getId().index()] = i;
+		}
+
+		List<Link> orderedLinks = new ArrayList<>(network.getLinks().size());
+		firstOutLink = new int[nodeCount + 1];
+		for (int i = 0; i < nodeCount; i++) {
+			firstOutLink[i] = orderedLinks.size();
+			nodes[i].getOutLinks().values().stream().sorted(Comparator.comparing(Link::getId)).forEach(orderedLinks::add);
+		}
+		firstOutLink[nodeCount] = orderedLinks.size();
+
+		links = orderedLinks.toArray(Link[]::new);
+		linkToNode = new int[links.length];
+		linkIndices = new int[Arrays.stream(links).mapToInt(l -> l.getId().index()).max().orElse(-1) + 1];
+		Arrays.fill(linkIndices, -1);
+		for (int i = 0; i < links.length; i++) {
+			linkToNode[i] = getNodeIndex(links[i].getToNode());
+			linkIndices[links[i].getId().index()] = i;
+		}
+	}
+
+	int getNodeIndex(Node node) {
+		return nodeIndices[node.getId().index()];
+	}
+
+	int getLinkIndex(Link link) {
+		return linkIndices[link.getId().index()];
+	}
+
+	double[] getLinkTravelTimes(TravelTime travelTime, double time) {
+		double[] travelTimes = new double[links.length];
+		for (int i = 0; i < links.length; i++) {
+			travelTimes[i] = travelTime.getLinkTravelTime(links[i], time, null, null);
+		}
+		return travelTimes;
+	}
+}
@@ -0,0 +1,134 @@
+package org.sinfonica.inclusive_ccam.travel_time;
+
+import java.util.Arrays;
+
+/**
+ * One-to-all Dijkstra search on a {@link NetworkGraph}. Instances keep their working arrays between searches and must
+ * not be shared between threads.
+ */
+final class ShortestPathTree {
+	interface LinkTravelTime {
+		double getTravelTime(int linkIndex, double time);
+	}
+
+	private final NetworkGraph graph;
+	private final double[] times;
+
+	// binary min-heap of node indices ordered by time, -1 marks nodes that are not in the heap
+	private final int[] heap;
+	private final int[] heapPositions;
+	private int heapSize;
+
+	ShortestPathTree(NetworkGraph graph) {
+		this.graph = graph;
+		this.times = new double[graph.nodeCount];
+		this.heap = new int[graph.nodeCount];
+		this.heapPositions = new int[graph.nodeCount];
+	}
+
+	/**
+	 * Computes the travel times from the origin node to all nodes. Link travel times are queried for the time at which
+	 * the link is entered.
+	 */
+	void calculate(int origin, double departureTime, LinkTravelTime linkTravelTime) {
+		Arrays.fill(times, Double.POSITIVE_INFINITY);
+		Arrays.fill(heapPositions, -1);
+		heapSize = 0;
+
+		times[origin] = 0.0;
+		push(origin);
+
+		while (heapSize > 0) {
+			int node = poll();
+			double time = times[node];
+
+			for (int link = graph.firstOutLink[node]; link < graph.firstOutLink[node + 1]; link++) {
+				int toNode = graph.linkToNode[link];
+				double arrivalTime = time + linkTravelTime.getTravelTime(link, departureTime + time);
+
+				if (arrivalTime < times[toNode]) {
+					times[toNode] = arrivalTime;
+
+					if (heapPositions[toNode] < 0) {
+						push(toNode);
+					} else {
+						siftUp(heapPositions[toNode]);
+					}
+				}
+			}
+		}
+	}
+
+	double getTime(int node) {
+		return times[node];
+	}
+
+	private void push(int node) {
+		heap[heapSize] = node;
+		heapPositions[node] = heapSize;
+		siftUp(heapSize++);
+	}
+
+	private int poll() {
+		int top = heap[0];
+		heapPositions[top] = -1;
+		heapSize--;
+
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapPositions[heap[0]] = 0;
+			siftDown(0);
+		}
+
+		return top;
+	}
+
+	private void siftUp(int position) {
+		int node = heap[position];
+		double time = times[node];
+
+		while (position > 0) {
+			int parentPosition = (position - 1) >>> 1;
+			int parent = heap[parentPosition];
+
+			if (times[parent] <= time) {
+				break;
+			}
+
+			heap[position] = parent;
+			heapPositions[parent] = position;
+			position = parentPosition;
+		}
+
+		heap[position] = node;
+		heapPositions[node] = position;
+	}
+
+	private void siftDown(int position) {
+		int node = heap[position];
+		double time = times[node];
+		int half = heapSize >>> 1;
+
+		while (position < half) {
+			int childPosition = 2 * position + 1;
+			int rightPosition = childPosition + 1;
+
+			if (rightPosition < heapSize && times[heap[rightPosition]] < times[heap[childPosition]]) {
+				childPosition = rightPosition;
+			}
+
+			int child = heap[childPosition];
+
+			if (time <= times[child]) {
+				break;
+			}
+
+			heap[position] = child;
+			heapPositions[child] = position;
+			position = childPosition;
+		}
+
+		heap[position] = node;
+		heapPositions[node] = position;
+	}
+}
@@ -0,0 +1,263 @@
+package org.sinfonica.inclusive_ccam.travel_time;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+
+/**
+ * Node-to-node travel times of a network, with link travel times frozen at one departure time. Matrices are obtained
+ * from the {@link TravelTimeMatrixRegistry}. They are either held on the heap or memory-mapped from a cache file, in
+ * which case they live off-heap and are shared through the page cache by all processes that use the same file.
+ *
+ * <p>
+ * Cache file layout (little endian): a {@value #HEADER_SIZE} byte header with magic number, format version, node count
+ * and departure time, followed by the row-major float32 matrix. Rows and columns follow the node order of
+ * {@link NetworkGraph}.
+ */
+public class TravelTimeMatrix {
+	private static final Logger log = LogManager.getLogger(TravelTimeMatrix.class);
+
+	private static final int MAGIC = 0x54544d58; // "TTMX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+
+	// a single mapping cannot exceed 2 GB, so large matrices are split into segments of whole rows
+	private static final int MAX_SEGMENT_ENTRIES = 1 << 28;
+
+	private final NetworkGraph graph;
+	private final double[] linkTravelTimes;
+	private final String key;
+	private final int rowsPerSegment;
+	private final FloatBuffer[] segments;
+
+	private TravelTimeMatrix(NetworkGraph graph, double[] linkTravelTimes, String key, FloatBuffer[] segments) {
+		this.graph = graph;
+		this.linkTravelTimes = linkTravelTimes;
+		this.key = key;
+		this.rowsPerSegment = getRowsPerSegment(graph.nodeCount);
+		this.segments = segments;
+	}
+
+	/**
+	 * Travel time between two nodes, {@link Double#POSITIVE_INFINITY} if the target cannot be reached.
+	 */
+	public double getTravelTime(Node fromNode, Node toNode) {
+		int from = graph.getNodeIndex(fromNode);
+		int to = graph.getNodeIndex(toNode);
+		return segments[from / rowsPerSegment].get((from % rowsPerSegment) * graph.nodeCount + to);
+	}
+
+	/**
+	 * Travel time of the link at the departure time of the matrix.
+	 */
+	public double getLinkTravelTime(Link link) {
+		return linkTravelTimes[graph.getLinkIndex(link)];
+	}
+
+	/**
+	 * Hash of the network topology, the link travel times and the departure time this matrix was built for.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	static TravelTimeMatrix create(NetworkGraph graph, double[] linkTravelTimes, String key) {
+		FloatBuffer[] segments = new FloatBuffer[getSegmentCount(graph.nodeCount)];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = FloatBuffer.allocate(getSegmentRows(graph.nodeCount, i) * graph.nodeCount);
+		}
+
+		fill(graph, linkTravelTimes, segments);
+		return new TravelTimeMatrix(graph, linkTravelTimes, key, segments);
+	}
+
+	/**
+	 * Maps the matrix with the given key from the cache directory. If there is no matching file yet, the matrix is
+	 * computed and written to the directory first.
+	 */
+	static TravelTimeMatrix loadOrCreate(Path directory, NetworkGraph graph, double[] linkTravelTimes, String key,
+			double departureTime) {
+		Path path = directory.resolve("travel_time_matrix_" + key + ".bin");
+
+		try {
+			if (Files.exists(path)) {
+				FloatBuffer[] segments = map(path, graph.nodeCount, departureTime);
+
+				if (segments != null) {
+					log.info("Loaded travel time matrix from " + path);
+					return new TravelTimeMatrix(graph, linkTravelTimes, key, segments);
+				}
+
+				log.warn("Ignoring invalid travel time matrix file " + path);
+			}
+
+			log.info("Computing travel time matrix for " + graph.nodeCount + " nodes into " + path);
+			Files.createDirectories(directory);
+			write(path, graph, linkTravelTimes, departureTime);
+
+			FloatBuffer[] segments = map(path, graph.nodeCount, departureTime);
+			if (segments == null) {
+				throw new IllegalStateException("Travel time matrix file " + path + " is invalid right after writing it");
+			}
+
+			return new TravelTimeMatrix(graph, linkTravelTimes, key, segments);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void fill(NetworkGraph graph, double[] linkTravelTimes, FloatBuffer[] segments) {
+		int rowsPerSegment = getRowsPerSegment(graph.nodeCount);
+		ThreadLocal<ShortestPathTree> trees = ThreadLocal.withInitial(() -> new ShortestPathTree(graph));
+
+		IntStream.range(0, graph.nodeCount).parallel().forEach(origin -> {
+			ShortestPathTree tree = trees.get();
+			tree.calculate(origin, 0.0, (link, time) -> linkTravelTimes[link]);
+
+			// absolute puts on disjoint rows, so the segments can be written concurrently
+			FloatBuffer segment = segments[origin / rowsPerSegment];
+			int offset = (origin % rowsPerSegment) * graph.nodeCount;
+			for (int node = 0; node < graph.nodeCount; node++) {
+				segment.put(offset + node, (float) tree.getTime(node));
+			}
+		});
+	}
+
+	private static void write(Path path, NetworkGraph graph, double[] linkTravelTimes, double departureTime)
+			throws IOException {
+		// concurrent runs may build the same matrix, the atomic move lets the last one win without torn files
+		Path temporaryPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(graph.nodeCount).putInt(0).putDouble(departureTime);
+				header.clear();
+				channel.write(header, 0);
+
+				MappedByteBuffer[] buffers = new MappedByteBuffer[getSegmentCount(graph.nodeCount)];
+				FloatBuffer[] segments = new FloatBuffer[buffers.length];
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, getSegmentOffset(graph.nodeCount, i),
+							(long) getSegmentRows(graph.nodeCount, i) * graph.nodeCount * Float.BYTES);
+					segments[i] = buffers[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				}
+
+				fill(graph, linkTravelTimes, segments);
+
+				for (MappedByteBuffer buffer : buffers) {
+					buffer.force();
+				}
+			}
+
+			Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporaryPath);
+		}
+	}
+
+	/**
+	 * Maps the matrix read-only, or returns null if the file does not match the expected layout.
+	 */
+	private static FloatBuffer[] map(Path path, int nodeCount, double departureTime) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long expectedSize = HEADER_SIZE + (long) nodeCount * nodeCount * Float.BYTES;
+			if (channel.size() != expectedSize) {
+				return null;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					return null;
+				}
+			}
+			header.flip();
+
+			if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != nodeCount) {
+				return null;
+			}
+			header.getInt();
+			if (header.getDouble() != departureTime) {
+				return null;
+			}
+
+			// mappings stay valid after the channel is closed
+			FloatBuffer[] segments = new FloatBuffer[getSegmentCount(nodeCount)];
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, getSegmentOffset(nodeCount, i),
+								(long) getSegmentRows(nodeCount, i) * nodeCount * Float.BYTES)
+						.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+			return segments;
+		}
+	}
+
+	static String computeKey(NetworkGraph graph, double[] linkTravelTimes, double departureTime) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer buffer = ByteBuffer.allocate(3 * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+			for (Node node : graph.nodes) {
+				digest.update(node.getId().toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte)0);
+			}
+
+			for (int i = 0; i < graph.links.length; i++) {
+				digest.update(graph.links[i].getId().toString().getBytes(StandardCharsets.UTF_8));
+				digest.update((byte)0);
+
+				buffer.clear();
+				buffer.putLong(graph.getNodeIndex(graph.links[i].getFromNode()));
+				buffer.putLong(graph.linkToNode[i]);
+				buffer.putDouble(linkTravelTimes[i]);
+				digest.update(buffer.flip());
+			}
+
+			buffer.clear();
+			buffer.putDouble(departureTime);
+			digest.update(buffer.flip());
+
+			return HexFormat.of().formatHex(digest.digest(), 0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int getRowsPerSegment(int nodeCount) {
+		return Math.max(1, MAX_SEGMENT_ENTRIES / Math.max(1, nodeCount));
+	}
+
+	private static int getSegmentCount(int nodeCount) {
+		int rowsPerSegment = getRowsPerSegment(nodeCount);
+		return (nodeCount + rowsPerSegment - 1) / rowsPerSegment;
+	}
+
+	private static int getSegmentRows(int nodeCount, int segment) {
+		int rowsPerSegment = getRowsPerSegment(nodeCount);
+		return Math.min(rowsPerSegment, nodeCount - segment * rowsPerSegment);
+	}
+
+	private static long getSegmentOffset(int nodeCount, int segment) {
+		return HEADER_SIZE + (long) segment * getRowsPerSegment(nodeCount) * nodeCount * Float.BYTES;
+	}
+}
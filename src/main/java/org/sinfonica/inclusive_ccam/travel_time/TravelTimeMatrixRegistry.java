@@ -0,0 +1,101 @@
+package org.sinfonica.inclusive_ccam.travel_time;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.util.TravelTime;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * JVM-wide registry of travel time matrices. Simulations that run concurrently in one JVM (see RunBenchmark) on the
+ * same network and travel time snapshot share one immutable matrix instead of building one each. Matrices are
+ * reference-counted and dropped once the last simulation using them has released them.
+ *
+ * <p>
+ * Matrices only refer to nodes and links through their ids, so a matrix built from one network instance can be used
+ * with every other instance that has the same content.
+ */
+public final class TravelTimeMatrixRegistry {
+	private static final Logger log = LogManager.getLogger(TravelTimeMatrixRegistry.class);
+
+	private static final class Entry {
+		private final CompletableFuture<TravelTimeMatrix> matrix = new CompletableFuture<>();
+		private int references = 0;
+	}
+
+	// guarded by itself
+	private static final Map<String, Entry> entries = new HashMap<>();
+
+	private TravelTimeMatrixRegistry() {
+	}
+
+	/**
+	 * Returns the matrix for the network and the link travel times at the departure time, building it (or loading it
+	 * from the cache directory) if no other simulation currently holds it. Every call must be paired with a call to
+	 * {@link #release(TravelTimeMatrix)}.
+	 */
+	public static TravelTimeMatrix acquire(Network network, TravelTime travelTime, double departureTime,
+			@Nullable Path cachePath) {
+		NetworkGraph graph = new NetworkGraph(network);
+		double[] linkTravelTimes = graph.getLinkTravelTimes(travelTime, departureTime);
+		String key = TravelTimeMatrix.computeKey(graph, linkTravelTimes, departureTime);
+
+		Entry entry;
+		boolean isCreator;
+		synchronized (entries) {
+			entry = entries.get(key);
+			isCreator = entry == null;
+
+			if (isCreator) {
+				entry = new Entry();
+				entries.put(key, entry);
+			}
+
+			entry.references++;
+		}
+
+		if (isCreator) {
+			try {
+				entry.matrix.complete(cachePath == null ?
+						TravelTimeMatrix.create(graph, linkTravelTimes, key) :
+						TravelTimeMatrix.loadOrCreate(cachePath, graph, linkTravelTimes, key, departureTime));
+			} catch (RuntimeException e) {
+				synchronized (entries) {
+					entries.remove(key);
+				}
+
+				entry.matrix.completeExceptionally(e);
+				throw e;
+			}
+		} else {
+			log.info("Sharing travel time matrix " + key + " with another simulation");
+		}
+
+		try {
+			return entry.matrix.join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("Building travel time matrix " + key + " failed in another simulation",
+					e.getCause());
+		}
+	}
+
+	public static void release(TravelTimeMatrix matrix) {
+		synchronized (entries) {
+			Entry entry = entries.get(matrix.getKey());
+			Preconditions.checkState(entry != null, "Travel time matrix %s is not registered", matrix.getKey());
+
+			if (--entry.references == 0) {
+				entries.remove(matrix.getKey());
+			}
+		}
+	}
+}
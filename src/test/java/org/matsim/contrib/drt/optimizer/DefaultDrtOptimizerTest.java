@@ -0,0 +1,207 @@
+package org.matsim.contrib.drt.optimizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.drt.optimizer.depot.DepotFinder;
+import org.matsim.contrib.drt.optimizer.insertion.UnplannedRequestInserter;
+import org.matsim.contrib.drt.optimizer.rebalancing.RebalancingStrategy;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.drt.run.DrtConfigGroup;
+import org.matsim.contrib.drt.schedule.DrtStayTask;
+import org.matsim.contrib.drt.scheduler.DrtScheduleInquiry;
+import org.matsim.contrib.drt.scheduler.EmptyVehicleRelocator;
+import org.matsim.contrib.drt.stops.PassengerStopDurationProvider;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.fleet.Fleet;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.contrib.dvrp.schedule.Schedule;
+import org.matsim.contrib.dvrp.schedule.ScheduleTimingUpdater;
+import org.matsim.core.mobsim.framework.MobsimTimer;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Checks the order in which the optimizer hands the unplanned requests to the inserter (by decreasing interaction
+ * time, first-come-first-served among requests with the same interaction time) and the tracking of idle vehicles.
+ */
+public class DefaultDrtOptimizerTest {
+	private final Map<Id<Request>, Double> interactionTimes = new HashMap<>();
+	private final List<List<Id<Request>>> insertionOrders = new ArrayList<>();
+
+	private DefaultDrtOptimizer optimizer;
+
+	@Before
+	public void setUp() {
+		Fleet fleet = mock(Fleet.class);
+		when(fleet.getVehicles()).thenReturn(ImmutableMap.of());
+
+		PassengerStopDurationProvider stopDurationProvider = mock(PassengerStopDurationProvider.class);
+		when(stopDurationProvider.calcPickupDuration(isNull(), any(DrtRequest.class))).thenAnswer(
+				invocation -> interactionTimes.get(invocation.<DrtRequest>getArgument(1).getId()));
+
+		// records the order and removes the requests through the iterator, as the default inserter does
+		UnplannedRequestInserter inserter = mock(UnplannedRequestInserter.class);
+		doAnswer(invocation -> {
+			List<Id<Request>> order = new ArrayList<>();
+			var iterator = invocation.<Collection<DrtRequest>>getArgument(0).iterator();
+			while (iterator.hasNext()) {
+				order.add(iterator.next().getId());
+				iterator.remove();
+			}
+			insertionOrders.add(order);
+			return null;
+		}).when(inserter).scheduleUnplannedRequests(any());
+
+		DrtRequestInsertionRetryQueue retryQueue = mock(DrtRequestInsertionRetryQueue.class);
+		when(retryQueue.hasRequestsToRetryNow(anyDouble())).thenReturn(false);
+
+		optimizer = new DefaultDrtOptimizer(new DrtConfigGroup(), fleet, new MobsimTimer(), mock(DepotFinder.class),
+				mock(RebalancingStrategy.class), mock(DrtScheduleInquiry.class), mock(ScheduleTimingUpdater.class),
+				mock(EmptyVehicleRelocator.class), inserter, retryQueue, stopDurationProvider, ForkJoinPool.commonPool(),
+				null);
+	}
+
+	@Test
+	public void requestsAreOrderedByDecreasingInteractionTime() {
+		submit("short", 10.0);
+		submit("long", 120.0);
+		submit("none", 0.0);
+		submit("medium", 60.0);
+		dispatch(0);
+
+		assertEquals(List.of(List.of(id("long"), id("medium"), id("short"), id("none"))), insertionOrders);
+	}
+
+	@Test
+	public void requestsWithTheSameInteractionTimeAreFirstComeFirstServed() {
+		submit("a", 60.0);
+		submit("b", 30.0);
+		submit("c", 60.0);
+		submit("d", 30.0);
+		submit("e", 60.0);
+		dispatch(0);
+
+		assertEquals(List.of(List.of(id("a"), id("c"), id("e"), id("b"), id("d"))), insertionOrders);
+	}
+
+	@Test
+	public void laterSubmissionsAreQueuedBehindEarlierOnesWithTheSameInteractionTime() {
+		submit("a", 30.0);
+		dispatch(0);
+
+		submit("b", 30.0);
+		submit("c", 90.0);
+		submit("d", 30.0);
+		dispatch(1);
+
+		assertEquals(List.of(List.of(id("a")), List.of(id("c"), id("b"), id("d"))), insertionOrders);
+	}
+
+	@Test
+	public void insertedRequestsAreRemoved() {
+		submit("a", 30.0);
+		dispatch(0);
+		dispatch(1);
+
+		// nothing left to insert, so the inserter is not called again
+		assertEquals(1, insertionOrders.size());
+		assertTrue(insertionOrders.get(0).contains(id("a")));
+	}
+
+	@Test
+	public void vehicleThatIsIdleAgainInTheSameStayTaskReturnsToDepot() {
+		DrtConfigGroup drtCfg = new DrtConfigGroup();
+		drtCfg.idleVehiclesReturnToDepots = true;
+		drtCfg.returnToDepotEvaluationInterval = 60.0;
+		drtCfg.returnToDepotTimeout = 600.0;
+
+		Link link = mock(Link.class);
+		Link depotLink = mock(Link.class);
+		DrtStayTask stayTask = new DrtStayTask(0.0, 30.0 * 3600.0, link);
+
+		Schedule schedule = mock(Schedule.class);
+		when(schedule.getCurrentTask()).thenReturn(stayTask);
+
+		DvrpVehicle vehicle = mock(DvrpVehicle.class);
+		when(vehicle.getId()).thenReturn(Id.create("vehicle", DvrpVehicle.class));
+		when(vehicle.getSchedule()).thenReturn(schedule);
+
+		Fleet fleet = mock(Fleet.class);
+		when(fleet.getVehicles()).thenReturn(ImmutableMap.of(vehicle.getId(), vehicle));
+
+		DrtScheduleInquiry scheduleInquiry = mock(DrtScheduleInquiry.class);
+		DepotFinder depotFinder = mock(DepotFinder.class);
+		when(depotFinder.findDepot(vehicle)).thenReturn(depotLink);
+		EmptyVehicleRelocator relocator = mock(EmptyVehicleRelocator.class);
+
+		DrtRequestInsertionRetryQueue retryQueue = mock(DrtRequestInsertionRetryQueue.class);
+		when(retryQueue.hasRequestsToRetryNow(anyDouble())).thenReturn(false);
+
+		MobsimTimer timer = new MobsimTimer();
+		DefaultDrtOptimizer optimizer = new DefaultDrtOptimizer(drtCfg, fleet, timer, depotFinder,
+				mock(RebalancingStrategy.class), scheduleInquiry, mock(ScheduleTimingUpdater.class), relocator,
+				mock(UnplannedRequestInserter.class), retryQueue, mock(PassengerStopDurationProvider.class),
+				ForkJoinPool.commonPool(), null);
+
+		// idle: the stay task begins
+		when(scheduleInquiry.isIdle(vehicle)).thenReturn(true);
+		optimizer.nextTask(vehicle);
+
+		// busy: stops are appended after the stay task, so the entry is dropped as stale
+		when(scheduleInquiry.isIdle(vehicle)).thenReturn(false);
+		step(optimizer, timer, 60.0);
+
+		// idle again in the same stay task: the stops were removed without a task change
+		when(scheduleInquiry.isIdle(vehicle)).thenReturn(true);
+		step(optimizer, timer, 120.0);
+		verify(relocator, never()).relocateVehicle(vehicle, depotLink,
+				EmptyVehicleRelocator.RELOCATE_VEHICLE_TO_DEPOT_TASK_TYPE);
+
+		// the stay task began at 0, so the timeout is exceeded
+		step(optimizer, timer, 660.0);
+		verify(relocator).relocateVehicle(vehicle, depotLink, EmptyVehicleRelocator.RELOCATE_VEHICLE_TO_DEPOT_TASK_TYPE);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void step(DefaultDrtOptimizer optimizer, MobsimTimer timer, double time) {
+		timer.setTime(time);
+		optimizer.notifyMobsimBeforeSimStep(new MobsimBeforeSimStepEvent(null, time));
+	}
+
+	private void submit(String id, double interactionTime) {
+		DrtRequest request = mock(DrtRequest.class);
+		when(request.getId()).thenReturn(id(id));
+		interactionTimes.put(id(id), interactionTime);
+		optimizer.requestSubmitted(request);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void dispatch(double time) {
+		optimizer.notifyMobsimBeforeSimStep(new MobsimBeforeSimStepEvent(null, time));
+	}
+
+	private static Id<Request> id(String id) {
+		return Id.create(id, Request.class);
+	}
+}
@@ -0,0 +1,298 @@
+package org.matsim.contrib.drt.optimizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.contrib.drt.passenger.DrtRequest;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.optimizer.Request;
+import org.matsim.core.mobsim.framework.MobsimTimer;
+import org.matsim.core.network.NetworkUtils;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Checks that the free-flow bound of the spatial filter never drops a vehicle that can reach the pickup in time, and how
+ * the grid is queried and kept up to date during a dispatch step.
+ */
+public class SpatialGridVehicleEntryFilterTest {
+	private static final double FREESPEED = 10.0;
+
+	private static final double MAX_WAIT_TIME = 600.0;
+
+	private final MobsimTimer timer = new MobsimTimer();
+	private final VehicleEntry.EntryFactory entryFactory = mock(VehicleEntry.EntryFactory.class);
+
+	private Network network;
+	private Link longLink;
+	private Link nextLink;
+	private Link distantLink;
+
+	@Before
+	public void setUp() {
+		network = NetworkUtils.createNetwork();
+		Node a = addNode("a", 0.0, 0.0);
+		Node b = addNode("b", 2000.0, 0.0);
+		Node c = addNode("c", 2100.0, 0.0);
+		Node d = addNode("d", 20000.0, 0.0);
+		Node e = addNode("e", 20100.0, 0.0);
+
+		longLink = addLink("long", a, b, 2000.0);
+		nextLink = addLink("next", b, c, 100.0);
+		distantLink = addLink("distant", d, e, 100.0);
+	}
+
+	@Test
+	public void vehicleOnPickupLinkCanReachPickup() {
+		double maxSpeed = SpatialGridVehicleEntryFilter.getMaxStraightLineSpeed(network);
+		DrtRequest request = createRequest(longLink, 100.0);
+
+		// already at the pickup, although traversing the whole link would take 200 s
+		assertTrue(SpatialGridVehicleEntryFilter.canReachPickup(longLink, 90.0, request, maxSpeed));
+		assertTrue(SpatialGridVehicleEntryFilter.canReachPickup(longLink, 100.0, request, maxSpeed));
+	}
+
+	@Test
+	public void vehicleBeforePickupLinkCanReachPickup() {
+		double maxSpeed = SpatialGridVehicleEntryFilter.getMaxStraightLineSpeed(network);
+		DrtRequest request = createRequest(nextLink, 100.0);
+
+		// the next link takes 10 s at free speed
+		assertTrue(SpatialGridVehicleEntryFilter.canReachPickup(longLink, 90.0, request, maxSpeed));
+		assertFalse(SpatialGridVehicleEntryFilter.canReachPickup(longLink, 91.0, request, maxSpeed));
+	}
+
+	@Test
+	public void distantVehicleCannotReachPickup() {
+		double maxSpeed = SpatialGridVehicleEntryFilter.getMaxStraightLineSpeed(network);
+		DrtRequest request = createRequest(longLink, 100.0);
+
+		assertFalse(SpatialGridVehicleEntryFilter.canReachPickup(distantLink, 0.0, request, maxSpeed));
+	}
+
+	@Test
+	public void linksShorterThanTheirNodeDistanceRaiseTheMaxSpeed() {
+		assertEquals(FREESPEED, SpatialGridVehicleEntryFilter.getMaxStraightLineSpeed(network), 1e-9);
+
+		addLink("shortcut", network.getNodes().get(Id.createNodeId("a")), network.getNodes().get(Id.createNodeId("c")),
+				700.0);
+		assertEquals(FREESPEED * 2100.0 / 700.0, SpatialGridVehicleEntryFilter.getMaxStraightLineSpeed(network), 1e-9);
+	}
+
+	@Test
+	public void pickupBeyondTheGridIsServedFromTheCellsAtItsEdge() {
+		Link outsideLink = addLink("outside", addNode("f", -5000.0, 0.0), addNode("g", -4900.0, 0.0), 100.0);
+		VehicleEntry nearEntry = createEntry(createVehicle("near"), longLink, 0.0);
+		VehicleEntry distantEntry = createEntry(createVehicle("distant"), distantLink, 0.0);
+		List<VehicleEntry> entries = List.of(nearEntry, distantEntry);
+
+		// the query range starts far to the left of the grid, the vehicle in its leftmost cell needs 690 s
+		assertEquals(List.of(nearEntry), createFilter().filter(createRequest(outsideLink, 700.0), entries));
+		assertEquals(List.of(), createFilter().filter(createRequest(outsideLink, 680.0), entries));
+
+		// a range far beyond the grid in all directions covers all cells
+		assertEquals(Set.of(nearEntry, distantEntry),
+				Set.copyOf(createFilter().filter(createRequest(outsideLink, 1e12), entries)));
+	}
+
+	@Test
+	public void negativeRadiusPassesOnNoVehicles() {
+		VehicleEntry entry = createEntry(createVehicle("vehicle"), longLink, 100.0);
+		SpatialGridVehicleEntryFilter filter = createFilter();
+
+		// the latest start is before the earliest departure of any vehicle
+		assertEquals(List.of(), filter.filter(createRequest(longLink, 50.0), List.of(entry)));
+
+		// a radius of zero still covers a vehicle on the pickup link
+		assertEquals(List.of(entry), filter.filter(createRequest(longLink, 100.0), List.of(entry)));
+	}
+
+	@Test
+	public void gridIsRebuiltWhenTheTimeChanges() {
+		DvrpVehicle vehicle = createVehicle("vehicle");
+		SpatialGridVehicleEntryFilter filter = createFilter();
+
+		VehicleEntry nearEntry = createEntry(vehicle, longLink, 0.0);
+		assertEquals(List.of(nearEntry), filter.filter(createRequest(longLink, 100.0), List.of(nearEntry)));
+
+		// the vehicle has moved away by the next dispatch step
+		timer.setTime(60.0);
+		VehicleEntry distantEntry = createEntry(vehicle, distantLink, 60.0);
+		assertEquals(List.of(), filter.filter(createRequest(longLink, 160.0), List.of(distantEntry)));
+		assertEquals(List.of(distantEntry), filter.filter(createRequest(distantLink, 160.0), List.of(distantEntry)));
+	}
+
+	@Test
+	public void entriesOfVehiclesWithInsertionsAreReplaced() {
+		DvrpVehicle vehicle = createVehicle("vehicle");
+		DvrpVehicle fullVehicle = createVehicle("full");
+		List<VehicleEntry> entries = List.of(createEntry(vehicle, longLink, 0.0), createEntry(fullVehicle, longLink, 0.0));
+		SpatialGridVehicleEntryFilter filter = createFilter();
+		assertEquals(entries, filter.filter(createRequest(longLink, 100.0), entries));
+
+		// as in the inserter, the entry is created anew after the insertion, or there is none if the vehicle is full
+		VehicleEntry newEntry = createEntry(vehicle, longLink, 0.0);
+		when(entryFactory.create(vehicle, 0.0)).thenReturn(newEntry);
+		when(entryFactory.create(fullVehicle, 0.0)).thenReturn(null);
+		filter.notifyInsertion(vehicle);
+		filter.notifyInsertion(fullVehicle);
+
+		assertEquals(List.of(newEntry), filter.filter(createRequest(longLink, 100.0), entries));
+	}
+
+	@Test
+	public void filterNeverDropsAVehicleThatCanReachThePickupInTime() {
+		Random random = new Random(4711);
+		network = NetworkUtils.createNetwork();
+		int size = 12;
+		double spacing = 500.0;
+
+		Node[][] nodes = new Node[size][size];
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				nodes[x][y] = addNode(x + "_" + y, x * spacing, y * spacing);
+			}
+		}
+
+		List<Link> links = new ArrayList<>();
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				if (x + 1 < size) {
+					links.add(addRandomLink(random, nodes[x][y], nodes[x + 1][y]));
+					links.add(addRandomLink(random, nodes[x + 1][y], nodes[x][y]));
+				}
+				if (y + 1 < size) {
+					links.add(addRandomLink(random, nodes[x][y], nodes[x][y + 1]));
+					links.add(addRandomLink(random, nodes[x][y + 1], nodes[x][y]));
+				}
+			}
+		}
+
+		List<VehicleEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			entries.add(createEntry(createVehicle("vehicle" + i), links.get(random.nextInt(links.size())),
+					random.nextDouble() * 300.0));
+		}
+
+		SpatialGridVehicleEntryFilter filter = createFilter();
+		int passedOn = 0;
+
+		for (int i = 0; i < 200; i++) {
+			DrtRequest request = createRequest(links.get(random.nextInt(links.size())), random.nextDouble() * 900.0);
+			Map<Node, Double> travelTimes = calcFreeFlowTravelTimes(request.getFromLink().getToNode());
+			Collection<VehicleEntry> candidates = filter.filter(request, entries);
+			passedOn += candidates.size();
+
+			// no insertion can pick up the passenger earlier than the free-flow travel time to the pickup
+			for (VehicleEntry entry : entries) {
+				double travelTime = travelTimes.get(entry.start.getLink().getToNode());
+				if (entry.start.getDepartureTime() + travelTime <= request.getLatestStartTime()) {
+					assertTrue(candidates.contains(entry));
+				}
+			}
+		}
+
+		// some vehicles are too far away for some requests
+		assertTrue(passedOn < 200 * entries.size());
+	}
+
+	private Link addRandomLink(Random random, Node from, Node to) {
+		double distance = NetworkUtils.getEuclideanDistance(from.getCoord(), to.getCoord());
+		Link link = addLink(from.getId() + "-" + to.getId(), from, to, distance * (1.0 + random.nextDouble() * 0.5));
+		link.setFreespeed(List.of(8.33, 13.89, 22.22).get(random.nextInt(3)));
+		return link;
+	}
+
+	/**
+	 * Free-flow travel times from all nodes to the given node.
+	 */
+	private Map<Node, Double> calcFreeFlowTravelTimes(Node toNode) {
+		Map<Node, Double> travelTimes = new HashMap<>();
+		Set<Node> settled = new HashSet<>();
+		PriorityQueue<Map.Entry<Node, Double>> queue = new PriorityQueue<>(Map.Entry.comparingByValue());
+		travelTimes.put(toNode, 0.0);
+		queue.add(Map.entry(toNode, 0.0));
+
+		while (!queue.isEmpty()) {
+			Node node = queue.poll().getKey();
+			if (!settled.add(node)) {
+				continue;
+			}
+
+			for (Link link : node.getInLinks().values()) {
+				double travelTime = travelTimes.get(node) + link.getLength() / link.getFreespeed();
+				if (travelTime < travelTimes.getOrDefault(link.getFromNode(), Double.POSITIVE_INFINITY)) {
+					travelTimes.put(link.getFromNode(), travelTime);
+					queue.add(Map.entry(link.getFromNode(), travelTime));
+				}
+			}
+		}
+
+		return travelTimes;
+	}
+
+	private SpatialGridVehicleEntryFilter createFilter() {
+		return new SpatialGridVehicleEntryFilter(network, timer, entryFactory, MAX_WAIT_TIME, true);
+	}
+
+	private static DvrpVehicle createVehicle(String id) {
+		DvrpVehicle vehicle = mock(DvrpVehicle.class);
+		when(vehicle.getId()).thenReturn(Id.create(id, DvrpVehicle.class));
+		return vehicle;
+	}
+
+	private static VehicleEntry createEntry(DvrpVehicle vehicle, Link startLink, double departureTime) {
+		return new VehicleEntry(vehicle, new Waypoint.Start(null, startLink, departureTime, 0), ImmutableList.of(),
+				new double[] { Double.POSITIVE_INFINITY }, List.of(), departureTime);
+	}
+
+	private Node addNode(String id, double x, double y) {
+		Node node = network.getFactory().createNode(Id.createNodeId(id), new Coord(x, y));
+		network.addNode(node);
+		return node;
+	}
+
+	private Link addLink(String id, Node from, Node to, double length) {
+		Link link = network.getFactory().createLink(Id.createLinkId(id), from, to);
+		link.setLength(length);
+		link.setFreespeed(FREESPEED);
+		link.setCapacity(1000.0);
+		link.setNumberOfLanes(1.0);
+		network.addLink(link);
+		return link;
+	}
+
+	private DrtRequest createRequest(Link fromLink, double latestStartTime) {
+		return DrtRequest.newBuilder() //
+				.id(Id.create("request", Request.class)) //
+				.submissionTime(0.0) //
+				.earliestStartTime(0.0) //
+				.latestStartTime(latestStartTime) //
+				.latestArrivalTime(latestStartTime + 1800.0) //
+				.passengerIds(List.of(Id.createPersonId("person"))) //
+				.mode("drt") //
+				.fromLink(fromLink) //
+				.toLink(distantLink) //
+				.build();
+	}
+}
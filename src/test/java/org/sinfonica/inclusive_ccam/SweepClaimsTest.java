@@ -0,0 +1,112 @@
+package org.sinfonica.inclusive_ccam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a simulation is held by at most one of the processes of a sharded sweep.
+ */
+public class SweepClaimsTest {
+	private static final Duration TIMEOUT = Duration.ofMinutes(10);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void freshClaimIsNotTakenOver() throws Exception {
+		Path claimsPath = folder.getRoot().toPath();
+
+		try (SweepClaims first = new SweepClaims(claimsPath, TIMEOUT);
+				SweepClaims second = new SweepClaims(claimsPath, TIMEOUT)) {
+			assertTrue(first.tryClaim("sim"));
+			assertFalse(second.tryClaim("sim"));
+
+			first.release("sim");
+			assertTrue(second.tryClaim("sim"));
+		}
+	}
+
+	@Test
+	public void onlyOneOfTheRacingProcessesTakesOverAStaleClaim() throws Exception {
+		Path claimsPath = folder.getRoot().toPath();
+		int processes = 16;
+
+		for (int round = 0; round < 20; round++) {
+			String name = "sim" + round;
+			Path staleClaim = claimsPath.resolve(name + ".claim.0");
+			Files.writeString(staleClaim, "crashed", StandardCharsets.UTF_8);
+			Files.setLastModifiedTime(staleClaim, FileTime.from(Instant.now().minus(TIMEOUT.multipliedBy(2))));
+
+			List<SweepClaims> claims = new ArrayList<>();
+			for (int i = 0; i < processes; i++) {
+				claims.add(new SweepClaims(claimsPath, TIMEOUT));
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(processes);
+			CountDownLatch start = new CountDownLatch(1);
+
+			try {
+				List<Future<Boolean>> results = new ArrayList<>();
+				for (SweepClaims claim : claims) {
+					results.add(executor.submit(() -> {
+						start.await();
+						return claim.tryClaim(name);
+					}));
+				}
+				start.countDown();
+
+				int winners = 0;
+				for (Future<Boolean> result : results) {
+					winners += result.get() ? 1 : 0;
+				}
+
+				assertEquals("round " + round, 1, winners);
+				assertTrue(Files.exists(claimsPath.resolve(name + ".claim.1")));
+				assertFalse(Files.exists(claimsPath.resolve(name + ".claim.2")));
+			} finally {
+				executor.shutdownNow();
+				claims.forEach(SweepClaims::close);
+			}
+		}
+	}
+
+	@Test
+	public void releaseOfATakenOverClaimKeepsTheHigherGeneration() throws Exception {
+		Path claimsPath = folder.getRoot().toPath();
+
+		try (SweepClaims slow = new SweepClaims(claimsPath, TIMEOUT);
+				SweepClaims other = new SweepClaims(claimsPath, TIMEOUT)) {
+			assertTrue(slow.tryClaim("sim"));
+
+			// the slow process missed its heartbeats
+			Path claim = claimsPath.resolve("sim.claim.0");
+			Files.setLastModifiedTime(claim, FileTime.from(Instant.now().minus(TIMEOUT.multipliedBy(2))));
+			assertTrue(other.tryClaim("sim"));
+
+			slow.release("sim");
+			assertTrue(Files.exists(claimsPath.resolve("sim.claim.1")));
+			assertFalse(slow.tryClaim("sim"));
+
+			other.release("sim");
+			assertTrue(slow.tryClaim("sim"));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.sinfonica.inclusive_ccam.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that appended records are scanned back unchanged, also after interrupted appends, recreated stores and
+ * concurrent appends.
+ */
+public class SweepResultsStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void appendedValuesOfAllColumnTypesAreScanned() throws Exception {
+		Path store = folder.getRoot().toPath().resolve("store");
+		assertFalse(SweepResultsStore.exists(store));
+
+		SweepResultsStore.append(store, new RunParameters("run_a", 250, 0.3, 120.0, "drt2", 60, true, 0.4), "drt",
+				createKpis(100, Double.NaN));
+		SweepResultsStore.append(store, new RunParameters("run_b", 300, 0.5, 240.0, "am", 1, false, 0.0), "drt",
+				createKpis(200, 3600.0));
+		assertTrue(SweepResultsStore.exists(store));
+
+		SweepResultsStore.Scan scan = SweepResultsStore.scan(store);
+		assertEquals(2, scan.getRowCount());
+
+		assertEquals("run_a", scan.getString("run", 0));
+		assertEquals("drt", scan.getString("mode", 0));
+		assertEquals(250, scan.getInt("fleet_size", 0));
+		assertEquals(0.3, scan.getDouble("vulnerable_share", 0), 0.0);
+		assertEquals(120.0, scan.getDouble("vulnerable_time", 0), 0.0);
+		assertEquals("drt2", scan.getString("dispatcher", 0));
+		assertEquals(60, scan.getInt("dispatch_interval", 0));
+		assertTrue(scan.getBoolean("prebook_vulnerable", 0));
+		assertEquals(0.4, scan.getDouble("prebooking_share", 0), 0.0);
+		assertEquals(100, scan.getInt("requests", 0));
+		assertEquals(10, scan.getInt("vulnerable_rejections", 0));
+		assertEquals(0.25, scan.getDouble("non_vulnerable_rejection_rate", 0), 0.0);
+		assertEquals(Double.NaN, scan.getDouble("detour_factor", 0), 0.0);
+		assertEquals(Double.NaN, scan.getDouble("infeasible_time", 0), 0.0);
+
+		assertEquals("run_b", scan.getString("run", 1));
+		assertEquals("drt", scan.getString("mode", 1));
+		assertEquals("am", scan.getString("dispatcher", 1));
+		assertFalse(scan.getBoolean("prebook_vulnerable", 1));
+		assertEquals(3600.0, scan.getDouble("infeasible_time", 1), 0.0);
+
+		assertEquals(250, scan.getIntColumn("fleet_size").get(0));
+		assertEquals(300, scan.getIntColumn("fleet_size").get(1));
+		assertEquals(0.5, scan.getDoubleColumn("vulnerable_share").get(1), 0.0);
+	}
+
+	@Test
+	public void appendTruncatesUncommittedBytes() throws Exception {
+		Path store = folder.getRoot().toPath().resolve("store");
+		SweepResultsStore.append(store, new RunParameters("run_a", 250, 0.3, 120.0, "drt", 60, true, 0.4), "drt",
+				createKpis(100, Double.NaN));
+
+		// an append that was interrupted after writing parts of the columns and the dictionary, but not the header
+		byte[] garbage = { 1, 2, 3 };
+		for (String file : List.of("fleet_size.col", "vulnerable_share.col", "run.col", "dictionary.bin")) {
+			Files.write(store.resolve(file), garbage, StandardOpenOption.APPEND);
+		}
+
+		SweepResultsStore.append(store, new RunParameters("run_b", 300, 0.5, 240.0, "drt", 1, false, 0.0), "drt",
+				createKpis(200, Double.NaN));
+
+		assertEquals(2 * Integer.BYTES, Files.size(store.resolve("fleet_size.col")));
+		assertEquals(2 * Double.BYTES, Files.size(store.resolve("vulnerable_share.col")));
+
+		SweepResultsStore.Scan scan = SweepResultsStore.scan(store);
+		assertEquals(2, scan.getRowCount());
+		assertEquals(300, scan.getInt("fleet_size", 1));
+		assertEquals(0.5, scan.getDouble("vulnerable_share", 1), 0.0);
+		assertEquals("run_a", scan.getString("run", 0));
+		assertEquals("run_b", scan.getString("run", 1));
+	}
+
+	@Test
+	public void dictionaryIsRebuiltAfterTheStoreIsRecreated() throws Exception {
+		Path store = folder.getRoot().toPath().resolve("store");
+		Path otherStore = folder.getRoot().toPath().resolve("other");
+
+		SweepResultsStore.append(store, new RunParameters("run_a", 250, 0.3, 120.0, "drt", 60, true, 0.4), "drt",
+				createKpis(100, Double.NaN));
+
+		// another process recreates the store with as many dictionary entries as this JVM has cached
+		SweepResultsStore.append(otherStore, new RunParameters("run_x", 100, 0.1, 120.0, "am", 1, false, 0.0), "drt_x",
+				createKpis(10, Double.NaN));
+		try (Stream<Path> files = Files.list(otherStore)) {
+			for (Path file : files.toList()) {
+				Files.copy(file, store.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		SweepResultsStore.append(store, new RunParameters("run_a", 300, 0.5, 240.0, "drt", 1, false, 0.0), "drt",
+				createKpis(200, Double.NaN));
+
+		SweepResultsStore.Scan scan = SweepResultsStore.scan(store);
+		assertEquals(2, scan.getRowCount());
+		assertEquals("run_x", scan.getString("run", 0));
+		assertEquals("drt_x", scan.getString("mode", 0));
+		assertEquals("am", scan.getString("dispatcher", 0));
+		assertEquals("run_a", scan.getString("run", 1));
+		assertEquals("drt", scan.getString("mode", 1));
+		assertEquals("drt", scan.getString("dispatcher", 1));
+	}
+
+	@Test
+	public void concurrentAppendsAreAllCommitted() throws Exception {
+		Path store = folder.getRoot().toPath().resolve("store");
+		int threads = 8;
+		int appendsPerThread = 25;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < threads; thread++) {
+				int threadIndex = thread;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < appendsPerThread; i++) {
+						int fleetSize = threadIndex * appendsPerThread + i;
+						SweepResultsStore.append(store,
+								new RunParameters("run_" + fleetSize, fleetSize, 0.5, 120.0, "drt", 60, false, 0.0),
+								"drt", createKpis(fleetSize, Double.NaN));
+					}
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		SweepResultsStore.Scan scan = SweepResultsStore.scan(store);
+		assertEquals(threads * appendsPerThread, scan.getRowCount());
+
+		Set<Integer> fleetSizes = new HashSet<>();
+		for (int row = 0; row < scan.getRowCount(); row++) {
+			int fleetSize = scan.getInt("fleet_size", row);
+			assertTrue(fleetSizes.add(fleetSize));
+			assertEquals("run_" + fleetSize, scan.getString("run", row));
+			assertEquals(fleetSize, scan.getInt("requests", row));
+		}
+	}
+
+	private static DrtKpis createKpis(int requests, double infeasibleTime) {
+		return new DrtKpis(new UserClassKpis(requests, 20, 0.2, 300.0, Double.NaN),
+				new UserClassKpis(requests / 2, 10, 0.2, 400.0, 1.5),
+				new UserClassKpis(requests - requests / 2, 10, 0.25, 200.0, 1.2), infeasibleTime);
+	}
+}
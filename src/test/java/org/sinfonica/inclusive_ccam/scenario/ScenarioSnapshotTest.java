@@ -0,0 +1,326 @@
+package org.sinfonica.inclusive_ccam.scenario;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkWriter;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.api.core.v01.population.PopulationWriter;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicle;
+import org.matsim.contrib.dvrp.fleet.DvrpVehicleSpecification;
+import org.matsim.contrib.dvrp.fleet.FleetReader;
+import org.matsim.contrib.dvrp.fleet.FleetSpecification;
+import org.matsim.contrib.dvrp.fleet.FleetSpecificationImpl;
+import org.matsim.contrib.dvrp.fleet.FleetWriter;
+import org.matsim.contrib.dvrp.fleet.ImmutableDvrpVehicleSpecification;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkChangeEvent;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.GenericRouteImpl;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+
+/**
+ * Checks that a scenario read from a snapshot equals the scenario loaded from the XML files the snapshot was written
+ * from.
+ */
+public class ScenarioSnapshotTest {
+	private static final String INPUT_KEY = "network.xml;plans.xml";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void snapshotEqualsXmlInputs() {
+		Path directory = folder.getRoot().toPath();
+		Scenario original = createScenario();
+
+		new NetworkWriter(original.getNetwork()).write(directory.resolve("network.xml").toString());
+		new PopulationWriter(original.getPopulation()).write(directory.resolve("plans.xml").toString());
+		new FleetWriter(createFleet().getVehicleSpecifications().values().stream()).write(
+				directory.resolve("vehicles.xml").toString());
+
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile(directory.resolve("network.xml").toString());
+		config.plans().setInputFile(directory.resolve("plans.xml").toString());
+		Scenario xmlScenario = ScenarioUtils.loadScenario(config);
+
+		FleetSpecification xmlFleet = new FleetSpecificationImpl();
+		new FleetReader(xmlFleet).readFile(directory.resolve("vehicles.xml").toString());
+
+		Path snapshotPath = directory.resolve("scenario.snapshot");
+		ScenarioSnapshot.write(snapshotPath, INPUT_KEY, xmlScenario, Map.of("vehicles.xml", xmlFleet));
+
+		Scenario snapshotScenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Map<String, FleetSpecification> snapshotFleets = ScenarioSnapshot.read(snapshotPath, INPUT_KEY,
+				snapshotScenario);
+
+		assertNetworkEquals(xmlScenario.getNetwork(), snapshotScenario.getNetwork());
+		assertPopulationEquals(xmlScenario.getPopulation(), snapshotScenario.getPopulation());
+
+		assertEquals(List.of("vehicles.xml"), List.copyOf(snapshotFleets.keySet()));
+		assertFleetEquals(xmlFleet, snapshotFleets.get("vehicles.xml"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedAttributeTypesAreRejected() {
+		Scenario scenario = createScenario();
+		Person person = scenario.getPopulation().getPersons().get(Id.createPersonId("person"));
+		person.getAttributes().putAttribute("home", new Coord(0.0, 0.0));
+
+		ScenarioSnapshot.write(folder.getRoot().toPath().resolve("scenario.snapshot"), INPUT_KEY, scenario, Map.of());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void networkChangeEventsAreRejected() {
+		Config config = ConfigUtils.createConfig();
+		config.network().setTimeVariantNetwork(true);
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		Link link = addLink(scenario.getNetwork(), "link", addNode(scenario.getNetwork(), "a", 0.0, 0.0),
+				addNode(scenario.getNetwork(), "b", 100.0, 0.0));
+
+		NetworkChangeEvent event = new NetworkChangeEvent(3600.0);
+		event.addLink(link);
+		event.setFreespeedChange(
+				new NetworkChangeEvent.ChangeValue(NetworkChangeEvent.ChangeType.ABSOLUTE_IN_SI_UNITS, 5.0));
+		NetworkUtils.addNetworkChangeEvent(scenario.getNetwork(), event);
+
+		ScenarioSnapshot.write(folder.getRoot().toPath().resolve("scenario.snapshot"), INPUT_KEY, scenario, Map.of());
+	}
+
+	private static Scenario createScenario() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Network network = scenario.getNetwork();
+		network.getAttributes().putAttribute("source", "test");
+
+		Node a = addNode(network, "a", 0.0, 0.0);
+		Node b = addNode(network, "b", 1000.0, 0.0);
+		Node c = addNode(network, "c", 1000.0, 1000.0);
+		b.getAttributes().putAttribute("signalized", true);
+
+		Link ab = addLink(network, "ab", a, b);
+		Link bc = addLink(network, "bc", b, c);
+		Link ca = addLink(network, "ca", c, a);
+		ab.getAttributes().putAttribute("highway", "primary");
+		bc.getAttributes().putAttribute("osmId", 123456789L);
+		bc.setAllowedModes(Set.of("car", "drt"));
+
+		Population population = scenario.getPopulation();
+		PopulationFactory factory = population.getFactory();
+
+		Person person = factory.createPerson(Id.createPersonId("person"));
+		person.getAttributes().putAttribute("drtInteractionTime", 120.0);
+		person.getAttributes().putAttribute("age", 82);
+		person.getAttributes().putAttribute("subpopulation", "vulnerable");
+
+		Plan plan = factory.createPlan();
+		plan.setScore(12.5);
+		Activity home = factory.createActivityFromLinkId("home", ab.getId());
+		home.setCoord(new Coord(500.0, 0.0));
+		home.setEndTime(8 * 3600.0);
+		plan.addActivity(home);
+
+		Leg carLeg = factory.createLeg("car");
+		carLeg.setDepartureTime(8 * 3600.0);
+		carLeg.setTravelTime(600.0);
+		NetworkRoute networkRoute = RouteUtils.createLinkNetworkRouteImpl(ab.getId(), List.of(bc.getId()), ca.getId());
+		networkRoute.setDistance(2000.0);
+		networkRoute.setTravelTime(600.0);
+		carLeg.setRoute(networkRoute);
+		carLeg.getAttributes().putAttribute("routingMode", "car");
+		plan.addLeg(carLeg);
+
+		Activity work = factory.createActivityFromLinkId("work", ca.getId());
+		work.setStartTime(8 * 3600.0 + 600.0);
+		work.setMaximumDuration(8 * 3600.0);
+		plan.addActivity(work);
+
+		Leg drtLeg = factory.createLeg("drt");
+		drtLeg.setRoute(new GenericRouteImpl(ca.getId(), ab.getId()));
+		plan.addLeg(drtLeg);
+
+		Activity backHome = factory.createActivityFromLinkId("home", ab.getId());
+		backHome.setCoord(new Coord(500.0, 0.0));
+		plan.addActivity(backHome);
+
+		Plan unselectedPlan = factory.createPlan();
+		unselectedPlan.addActivity(factory.createActivityFromCoord("home", new Coord(500.0, 0.0)));
+
+		person.addPlan(unselectedPlan);
+		person.addPlan(plan);
+		person.setSelectedPlan(plan);
+		population.addPerson(person);
+
+		Person otherPerson = factory.createPerson(Id.createPersonId("other"));
+		Plan otherPlan = factory.createPlan();
+		Activity otherHome = factory.createActivityFromLinkId("home", bc.getId());
+		otherHome.setEndTime(9 * 3600.0);
+		otherPlan.addActivity(otherHome);
+		otherPerson.addPlan(otherPlan);
+		population.addPerson(otherPerson);
+
+		return scenario;
+	}
+
+	private static FleetSpecification createFleet() {
+		FleetSpecification fleet = new FleetSpecificationImpl();
+
+		for (int i = 0; i < 3; i++) {
+			fleet.addVehicleSpecification(ImmutableDvrpVehicleSpecification.newBuilder()
+					.id(Id.create("drt_" + i, DvrpVehicle.class))
+					.startLinkId(Id.createLinkId(i == 0 ? "ab" : "bc"))
+					.capacity(4 + i)
+					.serviceBeginTime(0.0)
+					.serviceEndTime(24 * 3600.0 + i)
+					.build());
+		}
+
+		return fleet;
+	}
+
+	private static Node addNode(Network network, String id, double x, double y) {
+		Node node = network.getFactory().createNode(Id.createNodeId(id), new Coord(x, y));
+		network.addNode(node);
+		return node;
+	}
+
+	private static Link addLink(Network network, String id, Node from, Node to) {
+		Link link = network.getFactory().createLink(Id.createLinkId(id), from, to);
+		link.setLength(1000.0);
+		link.setFreespeed(13.89);
+		link.setCapacity(1800.0);
+		link.setNumberOfLanes(2.0);
+		network.addLink(link);
+		return link;
+	}
+
+	private static void assertNetworkEquals(Network expected, Network actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getCapacityPeriod(), actual.getCapacityPeriod(), 0.0);
+		assertEquals(expected.getEffectiveCellSize(), actual.getEffectiveCellSize(), 0.0);
+		assertEquals(expected.getEffectiveLaneWidth(), actual.getEffectiveLaneWidth(), 0.0);
+		assertEquals(expected.getAttributes().getAsMap(), actual.getAttributes().getAsMap());
+
+		assertEquals(expected.getNodes().keySet(), actual.getNodes().keySet());
+		for (Node node : expected.getNodes().values()) {
+			Node actualNode = actual.getNodes().get(node.getId());
+			assertEquals(node.getCoord(), actualNode.getCoord());
+			assertEquals(node.getAttributes().getAsMap(), actualNode.getAttributes().getAsMap());
+		}
+
+		assertEquals(expected.getLinks().keySet(), actual.getLinks().keySet());
+		for (Link link : expected.getLinks().values()) {
+			Link actualLink = actual.getLinks().get(link.getId());
+			assertEquals(link.getFromNode().getId(), actualLink.getFromNode().getId());
+			assertEquals(link.getToNode().getId(), actualLink.getToNode().getId());
+			assertEquals(link.getLength(), actualLink.getLength(), 0.0);
+			assertEquals(link.getFreespeed(), actualLink.getFreespeed(), 0.0);
+			assertEquals(link.getCapacity(), actualLink.getCapacity(), 0.0);
+			assertEquals(link.getNumberOfLanes(), actualLink.getNumberOfLanes(), 0.0);
+			assertEquals(link.getAllowedModes(), actualLink.getAllowedModes());
+			assertEquals(link.getAttributes().getAsMap(), actualLink.getAttributes().getAsMap());
+		}
+	}
+
+	private static void assertPopulationEquals(Population expected, Population actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getAttributes().getAsMap(), actual.getAttributes().getAsMap());
+		assertEquals(List.copyOf(expected.getPersons().keySet()), List.copyOf(actual.getPersons().keySet()));
+
+		for (Person person : expected.getPersons().values()) {
+			Person actualPerson = actual.getPersons().get(person.getId());
+			assertEquals(person.getAttributes().getAsMap(), actualPerson.getAttributes().getAsMap());
+			assertEquals(person.getPlans().size(), actualPerson.getPlans().size());
+			assertEquals(person.getPlans().indexOf(person.getSelectedPlan()),
+					actualPerson.getPlans().indexOf(actualPerson.getSelectedPlan()));
+
+			for (int i = 0; i < person.getPlans().size(); i++) {
+				assertPlanEquals(person.getPlans().get(i), actualPerson.getPlans().get(i));
+			}
+		}
+	}
+
+	private static void assertPlanEquals(Plan expected, Plan actual) {
+		assertEquals(expected.getScore(), actual.getScore());
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getAttributes().getAsMap(), actual.getAttributes().getAsMap());
+		assertEquals(expected.getPlanElements().size(), actual.getPlanElements().size());
+
+		Iterator<PlanElement> actualElements = actual.getPlanElements().iterator();
+		for (PlanElement element : expected.getPlanElements()) {
+			PlanElement actualElement = actualElements.next();
+			assertEquals(element.getClass(), actualElement.getClass());
+
+			if (element instanceof Activity activity) {
+				Activity actualActivity = (Activity)actualElement;
+				assertEquals(activity.getType(), actualActivity.getType());
+				assertEquals(activity.getLinkId(), actualActivity.getLinkId());
+				assertEquals(activity.getFacilityId(), actualActivity.getFacilityId());
+				assertEquals(activity.getCoord(), actualActivity.getCoord());
+				assertEquals(activity.getStartTime(), actualActivity.getStartTime());
+				assertEquals(activity.getEndTime(), actualActivity.getEndTime());
+				assertEquals(activity.getMaximumDuration(), actualActivity.getMaximumDuration());
+				assertEquals(activity.getAttributes().getAsMap(), actualActivity.getAttributes().getAsMap());
+			} else {
+				Leg leg = (Leg)element;
+				Leg actualLeg = (Leg)actualElement;
+				assertEquals(leg.getMode(), actualLeg.getMode());
+				assertEquals(leg.getDepartureTime(), actualLeg.getDepartureTime());
+				assertEquals(leg.getTravelTime(), actualLeg.getTravelTime());
+				assertEquals(leg.getAttributes().getAsMap(), actualLeg.getAttributes().getAsMap());
+				assertRouteEquals(leg.getRoute(), actualLeg.getRoute());
+			}
+		}
+	}
+
+	private static void assertRouteEquals(Route expected, Route actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getRouteType(), actual.getRouteType());
+		assertEquals(expected.getStartLinkId(), actual.getStartLinkId());
+		assertEquals(expected.getEndLinkId(), actual.getEndLinkId());
+		assertEquals(expected.getRouteDescription(), actual.getRouteDescription());
+		assertEquals(expected.getDistance(), actual.getDistance(), 0.0);
+		assertEquals(expected.getTravelTime(), actual.getTravelTime());
+
+		if (expected instanceof NetworkRoute networkRoute) {
+			assertEquals(networkRoute.getLinkIds(), ((NetworkRoute)actual).getLinkIds());
+		}
+	}
+
+	private static void assertFleetEquals(FleetSpecification expected, FleetSpecification actual) {
+		assertEquals(expected.getVehicleSpecifications().keySet(), actual.getVehicleSpecifications().keySet());
+
+		for (DvrpVehicleSpecification vehicle : expected.getVehicleSpecifications().values()) {
+			DvrpVehicleSpecification actualVehicle = actual.getVehicleSpecifications().get(vehicle.getId());
+			assertEquals(vehicle.getStartLinkId(), actualVehicle.getStartLinkId());
+			assertEquals(vehicle.getCapacity(), actualVehicle.getCapacity());
+			assertEquals(vehicle.getServiceBeginTime(), actualVehicle.getServiceBeginTime(), 0.0);
+			assertEquals(vehicle.getServiceEndTime(), actualVehicle.getServiceEndTime(), 0.0);
+		}
+	}
+}